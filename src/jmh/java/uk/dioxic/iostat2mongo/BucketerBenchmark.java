@@ -0,0 +1,118 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@State(Scope.Thread)
+public class BucketerBenchmark {
+
+    private final Bucketer bucketer = Bucketer.builder()
+            .bucketLevel(ChronoUnit.MINUTES)
+            .resolution(ChronoUnit.SECONDS)
+            .dimensionFields(List.of("machine", "type", "metric", "device"))
+            .factField("value")
+            .includeValues(true)
+            .build();
+
+    private final BucketEncoder encoder = new BucketEncoder(bucketer);
+    private final BucketTable buckets = new BucketTable();
+
+    private List<IostatParser.State> states;
+    private List<Document> documents;
+    private List<SampleBatch> batches;
+    private Document first;
+
+    @Setup
+    public void setup() throws IOException {
+        IostatParser parser = IostatParser.builder().mapped(true).build();
+        Path file = IostatFixture.temp(60, 8);
+        states = parser.mappedParse(file).collectList().block();
+        documents = parser.mappedParse(file).flatMap(IostatParser.State::toDocumentList).collectList().block();
+        batches = parser.batchParse(file).collectList().block();
+        first = documents.get(0);
+        for (SampleBatch batch : batches) {
+            bucketer.accumulate(buckets, batch);
+        }
+    }
+
+    @Benchmark
+    public void toDocumentList(Blackhole blackhole) {
+        for (IostatParser.State state : states) {
+            blackhole.consume(state.toDocumentList().collectList().block());
+        }
+    }
+
+    @Benchmark
+    public Document combine() {
+        Document combined = first;
+        for (Document document : documents) {
+            combined = bucketer.combine(combined, document);
+        }
+        return combined;
+    }
+
+    @Benchmark
+    public void bucket(Blackhole blackhole) {
+        for (Document document : documents) {
+            UpdateOneModel<Document> model = bucketer.bucket(document);
+            blackhole.consume(model);
+        }
+    }
+
+    @Benchmark
+    public void coalesce(Blackhole blackhole) {
+        UpsertCoalescer coalescer = new UpsertCoalescer();
+        for (Document document : documents) {
+            coalescer.add(bucketer.bucket(document));
+        }
+        blackhole.consume(coalescer.drain());
+    }
+
+    @Benchmark
+    public void dimensionKey(Blackhole blackhole) {
+        for (Document document : documents) {
+            blackhole.consume(bucketer.dimensionKey(document));
+        }
+    }
+
+    @Benchmark
+    public BucketTable accumulate() {
+        BucketTable series = new BucketTable();
+        for (SampleBatch batch : batches) {
+            bucketer.accumulate(series, batch);
+        }
+        return series;
+    }
+
+    @Benchmark
+    public void toDocument(Blackhole blackhole) {
+        for (Bucket series : buckets) {
+            blackhole.consume(bucketer.toDocument(series));
+        }
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (Bucket series : buckets) {
+            RawBsonDocument document = encoder.encode(series);
+            blackhole.consume(document);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package uk.dioxic.iostat2mongo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@State(Scope.Thread)
+public class DateUtilBenchmark {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("MM/dd/yy HH:mm:ss");
+
+    private final String date = "12/16/18 15:00:57";
+    private final String values = "sda                0.00     0.94     0.00    15.22     0.00   121.75";
+    private final String isoDate = "2018-12-16T15:00:57+0000";
+    private final ByteBuffer buffer = ByteBuffer.wrap(date.getBytes(StandardCharsets.US_ASCII));
+    // one per file in the pipeline, so the format is detected once and every later line reuses it
+    private final TimestampParser parser = new TimestampParser();
+    private final TimestampParser isoParser = new TimestampParser();
+
+    @Setup
+    public void setup() {
+        parser.parse(date);
+        isoParser.parse(isoDate);
+    }
+
+    @Benchmark
+    public boolean isDate() {
+        return DateUtil.isDate(date);
+    }
+
+    @Benchmark
+    public boolean isDate_notDate() {
+        return DateUtil.isDate(values);
+    }
+
+    @Benchmark
+    public LocalDateTime parse() {
+        return DateUtil.parse(date);
+    }
+
+    @Benchmark
+    public LocalDateTime parse_formatter() {
+        return LocalDateTime.parse(date, FORMATTER);
+    }
+
+    @Benchmark
+    public LocalDateTime parser_parse() {
+        return parser.parse(date);
+    }
+
+    @Benchmark
+    public LocalDateTime parser_parse_notDate() {
+        return parser.parse(values);
+    }
+
+    @Benchmark
+    public LocalDateTime parser_parse_bytes() {
+        return parser.parse(buffer, 0, buffer.limit());
+    }
+
+    @Benchmark
+    public LocalDateTime parser_parse_iso() {
+        return isoParser.parse(isoDate);
+    }
+}
@@ -0,0 +1,65 @@
+package uk.dioxic.iostat2mongo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Generates an iostat -xt log with a fixed seed, so benchmark runs parse the same bytes.
+ */
+public class IostatFixture {
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("MM/dd/yy HH:mm:ss");
+    private static final String CPU_HEADER = "avg-cpu:  %user   %nice %system %iowait  %steal   %idle";
+    private static final String DEVICE_HEADER = "Device:         rrqm/s   wrqm/s     r/s     w/s    rkB/s    wkB/s avgrq-sz avgqu-sz   await r_await w_await  svctm  %util";
+    private static final int DEVICE_COLUMNS = 13;
+    private static final int CPU_COLUMNS = 6;
+
+    public static Path write(Path file, int intervals, int devices) throws IOException {
+        Random random = new Random(42);
+        LocalDateTime ts = LocalDateTime.of(2018, 12, 16, 15, 0, 0);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write("Linux 3.10.0-957.el7.x86_64 (bench-host) \t12/16/18 \t_x86_64_\t(8 CPU)\n\n");
+            for (int interval = 0; interval < intervals; interval++) {
+                writer.write(DATE.format(ts.plusSeconds(interval)));
+                writer.write('\n');
+                writer.write(CPU_HEADER);
+                writer.write("\n        ");
+                values(writer, random, CPU_COLUMNS);
+                writer.write('\n');
+                writer.write(DEVICE_HEADER);
+                writer.write('\n');
+                for (int device = 0; device < devices; device++) {
+                    writer.write(String.format("%-15s", device(device)));
+                    values(writer, random, DEVICE_COLUMNS);
+                }
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+
+    public static Path temp(int intervals, int devices) throws IOException {
+        Path file = Files.createTempFile("iostat-" + intervals + "x" + devices + "-", ".log");
+        file.toFile().deleteOnExit();
+        return write(file, intervals, devices);
+    }
+
+    private static String device(int i) {
+        return i == 0 ? "sda" : "nvme" + (i - 1) + "n1";
+    }
+
+    private static void values(BufferedWriter writer, Random random, int columns) throws IOException {
+        for (int i = 0; i < columns; i++) {
+            // roughly a third of iostat values are zero
+            double value = random.nextInt(3) == 0 ? 0 : random.nextDouble() * 200;
+            writer.write(String.format(" %8.2f", value));
+        }
+        writer.write('\n');
+    }
+}
@@ -0,0 +1,53 @@
+package uk.dioxic.iostat2mongo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Parses a whole generated file, i.e. the {@code getNext} loop of each parser.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({"3600"})
+    public int intervals;
+
+    @Param({"4", "32"})
+    public int devices;
+
+    private Path file;
+    private IostatParser parser;
+
+    @Setup
+    public void setup() throws IOException {
+        file = IostatFixture.temp(intervals, devices);
+        parser = IostatParser.builder().build();
+    }
+
+    @Benchmark
+    public long generatorParse() {
+        return parser.generatorParse(file).count().block();
+    }
+
+    @Benchmark
+    public long mappedParse() {
+        return parser.mappedParse(file).count().block();
+    }
+
+    @Benchmark
+    public long batchParse() {
+        return IostatParser.builder().mapped(true).build().batchParse(file).count().block();
+    }
+}
@@ -0,0 +1,91 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.bulk.BulkWriteResult;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * Parse, bucket, encode and batch a generated file as {@code Application.load} does, writing to a no-op
+ * sink or to a BSON dump file.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    @Param({"3600"})
+    public int intervals;
+
+    @Param({"4", "32"})
+    public int devices;
+
+    @Param({"1", "4"})
+    public int splits;
+
+    @Param({"none", "bson"})
+    public String sink;
+
+    private Path file;
+    private Path out;
+
+    @Setup
+    public void setup() throws IOException {
+        file = IostatFixture.temp(intervals, devices);
+        out = Files.createTempDirectory("iostat-sink");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(out.resolve("iostats.bson"));
+        Files.deleteIfExists(out);
+    }
+
+    @Benchmark
+    public long load() throws IOException {
+        IostatParser parser = IostatParser.builder()
+                .mapped(true)
+                .parallelism(splits)
+                .build();
+        Bucketer bucketer = Bucketer.builder()
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .dimensionFields(List.of("machine", "type", "metric", "device"))
+                .factField("value")
+                .includeValues(false)
+                .includeAvg(true)
+                .build();
+        BucketEncoder encoder = new BucketEncoder(bucketer);
+        BucketAggregator<Application.Leveled<RawBsonDocument>> aggregator =
+                new BucketAggregator<>(bucketer, bucket -> new Application.Leveled<>(0, encoder.encode(bucket)));
+        WriteController controller = new WriteController(1000, 16 * 1024 * 1024, 1, Duration.ofSeconds(1));
+
+        try (Sink documents = sink.equals("bson")
+                ? new BsonFileSink(List.of(out.resolve("iostats.bson")), false)
+                : (level, models) -> Mono.just(BulkWriteResult.acknowledged(models.size(), 0, 0, 0, List.of()))) {
+            return parser.batchParse(file)
+                    .transform(aggregator::windows)
+                    .concatMapIterable(new Application.WriteBatcher(controller, 1))
+                    .concatMap(batch -> documents.insert(0, batch.models.get(0)))
+                    .map(result -> (long) result.getInsertedCount())
+                    .reduce(0L, Long::sum)
+                    .block();
+        }
+    }
+}
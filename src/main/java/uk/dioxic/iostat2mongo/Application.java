@@ -3,23 +3,40 @@ package uk.dioxic.iostat2mongo;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.temporal.ChronoUnit;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.BaseStream;
 
 @Slf4j
 public class Application {
 
+    private static final Duration FOLLOW_POLL = Duration.ofMillis(200);
+    /** the key of a sample is the dimension named after its type: iostat has devices, sar and mpstat also cpus, interfaces... */
+    private static final List<String> DIMENSIONS = List.of("machine", "type", "metric", "device", "cpu", "iface", "intr", "tty", "filesystem");
+
     private static CliOptions cli;
 
+    private final WriteController controller = new WriteController(
+            cli.getBatchSize(), cli.getBatchBytes(), cli.getWriters(), cli.getWriteLatency());
+
     public static void main(String[] args) {
         try {
             cli = new CliOptions(args);
@@ -44,54 +61,242 @@ public class Application {
         // create index
 //        Mono.from(cli.getCollection().createIndex(Indexes.ascending("machine", "type", "metric", "ts"))).block();
 
-        IostatParser parser = IostatParser.builder()
-            .attributes(cli.getAttributes())
+        PipelineMetrics metrics = PipelineMetrics.get();
+        metrics.register();
+        Disposable reporter = cli.getMetricsInterval().isZero()
+                ? Disposables.disposed()
+                : Flux.interval(cli.getMetricsInterval()).subscribe(tick -> log.info(metrics.summary()));
+
+        try {
+            if (cli.isFollow()) {
+                if (cli.getOutput() != null)
+                    throw new IllegalArgumentException("follow mode upserts into mongodb and cannot write to files");
+                if (cli.getPercentiles() != null)
+                    throw new IllegalArgumentException("follow mode upserts partial buckets and cannot merge their percentile sketches");
+                if (cli.getJournal() != null)
+                    throw new IllegalArgumentException("follow mode upserts into mongodb and cannot spill to a journal");
+                follow(cli.getPath());
+            } else {
+                try (Sink sink = journal(newSink())) {
+                    load(cli.getFiles(), sink);
+                }
+            }
+        } finally {
+            reporter.dispose();
+            log.info(metrics.summary());
+        }
+    }
+
+    private void load(List<Path> files, Sink sink) {
+        Runtime runtime = Runtime.getRuntime();
+        long start = System.nanoTime();
+
+        Result total = Flux.fromIterable(files)
+                .flatMap(file -> load(file, sink).subscribeOn(Schedulers.elastic()), cli.getThreads())
+                .doOnNext(result -> log.info(result.toString()))
+                .reduce(new Result("total"), Result::merge)
+                .block();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("{} from {} files in {}s", total, files.size(), String.format("%.1f", seconds));
+        log.info(String.format("Throughput: %.0f docs/s, %.1f MB/s",
+                total.documents() / seconds,
+                total.bytes / (1024d * 1024d) / seconds));
+        log.info("{}", controller);
+        log.info(String.format("Memory in use while reading: %dMB", (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+    }
+
+    private Mono<Result> load(Path file, Sink sink) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            CheckpointStore.Checkpoint checkpoint = cli.getCheckpoints() != null
+                    ? cli.getCheckpoints().get(file)
+                    : new CheckpointStore.Checkpoint();
+
+            if (checkpoint.isComplete()) {
+                log.info("Skipping {}, already loaded", file.getFileName());
+                return Mono.just(new Result(file.getFileName().toString()));
+            }
+            if (checkpoint.getOffset() > 0) {
+                log.info("Resuming {} from offset {}", file.getFileName(), checkpoint.getOffset());
+            }
+
+            SampleParser parser = newParser(file);
+            BucketAggregator<Leveled<RawBsonDocument>> aggregator = newAggregator(bucketer -> new BucketEncoder(bucketer)::encode);
+            return parser.batchParse(file, checkpoint.getOffset())
+                    .doOnSubscribe(sub -> log.info("Starting processing {}", file.getFileName()))
+                    .doOnComplete(() -> log.info("Processing complete {}", file.getFileName()))
+                    .transform(aggregator::windows)
+                    //.parallel()
+                    .publishOn(Schedulers.elastic())
+//                    .log()
+//                    .doOnNext(doc -> logger.info(DocumentUtil.toJson(doc)))
+                    .concatMapIterable(new WriteBatcher(controller, cli.getRollups().size()))
+//                    .parallel()
+//                    .runOn(Schedulers.parallel())
+//                    .doOnNext(e -> logger.info("writing batch"))
+                    .flatMapSequential(batch -> write(batch, sink), controller.getMaxConcurrency())
+                    .doOnNext(batch -> {
+                        if (cli.getCheckpoints() != null)
+                            cli.getCheckpoints().acknowledge(checkpoint, batch.offset);
+                    })
+                    .flatMapIterable(batch -> batch.results)
+                    .doOnNext(result -> log.info(result.toString()))
+                    .doOnError(e -> log.error("failed loading {}", file, e))
+//                    .sequential()
+                    .reduce(new Result(file.getFileName().toString()), Result::sum)
+                    .map(result -> result.finish(size(file) - checkpoint.getOffset(), System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Writes each level of the batch to its own collection; the batch completes once all of them have.
+     */
+    private Mono<WriteBatch> write(WriteBatch batch, Sink sink) {
+        return Flux.range(0, batch.models.size())
+                .filter(level -> !batch.models.get(level).isEmpty())
+                .flatMap(level -> {
+                    List<InsertOneModel<RawBsonDocument>> models = batch.models.get(level);
+                    PipelineMetrics.get().batch(models.size());
+                    if (cli.getJournal() != null) {
+                        // the journal's drain writes through the controller and counts the documents written
+                        return sink.insert(level, models);
+                    }
+                    return controller.submit(() -> sink.insert(level, models))
+                            .doOnNext(result -> PipelineMetrics.get().documentsWritten(result.getInsertedCount()));
+                })
+                .doOnNext(batch.results::add)
+                .then(Mono.just(batch));
+    }
+
+    private static MongoCollection<Document> collection(int level) {
+        return cli.getRollups().get(level).getCollection();
+    }
+
+    /**
+     * Follows a growing file (or stdin) and upserts partial buckets at least every latency period,
+     * coalescing the upserts of each bucket that are pending together.
+     */
+    private void follow(Path file) {
+        SampleParser parser = newParser(file);
+        BucketAggregator<Leveled<UpdateOneModel<Document>>> aggregator = newAggregator(bucketer -> bucketer::bucket);
+        BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+        Duration latency = cli.getLatency();
+
+        log.info("Following {}", file);
+
+        Result result = parser.batchFollow(file, FOLLOW_POLL).subscribeOn(Schedulers.elastic())
+                .transform(batches -> aggregator.follow(batches, latency))
+                .groupBy(update -> update.level)
+                .flatMap(level -> level.map(update -> update.model)
+                        .transform(UpsertCoalescer.coalesce(cli.getBatchSize(), latency))
+                        .doOnNext(models -> PipelineMetrics.get().batch(models.size()))
+                        .concatMap(models -> controller.submit(() -> Mono.from(collection(level.key()).bulkWrite(models, options)))))
+                .doOnNext(bulkWriteResult -> PipelineMetrics.get().documentsWritten(
+                        bulkWriteResult.getModifiedCount() + bulkWriteResult.getUpserts().size()))
+                .doOnNext(bulkWriteResult -> log.info(bulkWriteResult.toString()))
+                .reduce(new Result(file.toString()), Result::sum)
+                .block();
+
+        log.info("{}", result);
+    }
+
+    /**
+     * The sink behind a spill journal, when there is one.
+     */
+    private Sink journal(Sink sink) throws IOException {
+        if (cli.getJournal() == null) {
+            return sink;
+        }
+        log.info("Spilling to journal {}", cli.getJournal());
+        return new SpillJournal(cli.getJournal(), cli.getJournalSize(), sink, controller);
+    }
+
+    /**
+     * The rollup level collections, or files of them under the output directory.
+     */
+    private static Sink newSink() throws IOException {
+        List<CliOptions.Rollup> rollups = cli.getRollups();
+        if (cli.getOutput() == null) {
+            return new MongoSink(rollups.stream()
+                    .map(rollup -> rollup.getCollection().withDocumentClass(RawBsonDocument.class))
+                    .collect(Collectors.toList()), cli.isIdempotent());
+        }
+        String extension = "." + cli.getOutputFormat() + (cli.isGzip() ? ".gz" : "");
+        List<Path> files = rollups.stream()
+                .map(rollup -> rollup.getCollection().getNamespace())
+                .map(namespace -> cli.getOutput().resolve(namespace.getDatabaseName()).resolve(namespace.getCollectionName() + extension))
+                .collect(Collectors.toList());
+        log.info("Writing to {}", files);
+        return cli.getOutputFormat().equals("json")
+                ? new JsonFileSink(files, cli.isGzip())
+                : new BsonFileSink(files, cli.isGzip());
+    }
+
+    /**
+     * A parser of the format chosen with -i, or else of the format detected from the start of the file.
+     */
+    private SampleParser newParser(Path file) {
+        SampleFormat format;
+        try {
+            if (!cli.getInputFormat().equals("auto"))
+                format = SampleFormat.named(cli.getInputFormat());
+            else if (SampleParser.STDIN.equals(file.toString()) || !Files.exists(file))
+                format = SampleFormat.named(SampleFormat.DEFAULT);
+            else
+                format = SampleFormat.detect(file);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+        log.debug("Parsing {} as {}", file, format.name());
+        return format.newParser(ParserOptions.builder()
             .filters(cli.getFilters())
-            .build();
+            .devices(cli.getDevices())
+            .mapped(cli.isMapped() || cli.getCheckpoints() != null)
+            .parallelism(cli.getSplits())
+            .build());
+    }
+
+    /**
+     * An aggregator for every rollup level, tagging what each level emits with the level.
+     */
+    private <T> BucketAggregator<Leveled<T>> newAggregator(Function<Bucketer, Function<Bucket, T>> emitters) {
+        List<CliOptions.Rollup> rollups = cli.getRollups();
+        BucketAggregator<Leveled<T>> aggregator = null;
+        for (int i = 0; i < rollups.size(); i++) {
+            int level = i;
+            Bucketer bucketer = newBucketer(rollups.get(level));
+            Function<Bucket, T> emitter = emitters.apply(bucketer);
+            Function<Bucket, Leveled<T>> leveled = bucket -> new Leveled<>(level, emitter.apply(bucket));
+            aggregator = aggregator == null
+                    ? new BucketAggregator<>(bucketer, leveled)
+                    : aggregator.rollup(bucketer, leveled);
+        }
+        return aggregator.allowedLateness(cli.getAllowedLateness());
+    }
 
-        Bucketer bucketer  = Bucketer.builder()
-                .bucketLevel(ChronoUnit.MINUTES)
-                .resolution(ChronoUnit.SECONDS)
-                .dimensionFields(List.of("machine","type","metric","device"))
+    private Bucketer newBucketer(CliOptions.Rollup rollup) {
+        return Bucketer.builder()
+                .bucketLevel(rollup.getBucketLevel())
+                .resolution(rollup.getResolution())
+                .dimensionFields(DIMENSIONS)
                 .factField("value")
-                .includeValues(false)
+                .attributes(cli.getAttributes())
+                .includeValues(cli.isIncludeValues())
+                .packValues(cli.isPackValues())
+                .deterministicId(cli.isIdempotent())
                 .includeAvg(true)
+                .includeSketch(cli.getPercentiles() != null)
+                .percentiles(cli.getPercentiles() != null ? cli.getPercentiles() : List.of())
                 .build();
+    }
 
-        BulkWriteOptions options = new BulkWriteOptions().ordered(false);
-
-        Runtime runtime = Runtime.getRuntime();
-
-        cli.getFiles().forEach(file -> parser.generatorParse(file)
-                .doOnSubscribe(sub -> log.info("Starting processing"))
-                .doOnComplete(() -> log.info("Processing complete"))
-                .windowUntil(state -> bucketer.splitOn(state.ts), true)
-                //.parallel()
-                .publishOn(Schedulers.elastic())
-                .flatMap(window -> window.flatMap(IostatParser.State::toDocumentList)
-                        .groupBy(bucketer::dimensionKey)
-                        .flatMap(g -> g.reduce(new Document(), bucketer::combine))
-                )
-                .doOnNext(doc -> doc.remove(bucketer.getSumField()))
-//                .log()
-//                .doOnNext(doc -> logger.info(DocumentUtil.toJson(doc)))
-//                .doOnNext(cli::log)
-                .map(InsertOneModel::new)
-                .buffer(cli.getBatchSize())
-//                .parallel()
-//                .runOn(Schedulers.parallel())
-//                .doOnNext(e -> logger.info("writing batch"))
-                .flatMap(models -> cli.getCollection().bulkWrite(models, options))
-                .doOnNext(result -> log.info(result.toString()))
-                .doOnError(System.err::println)
-//                .sequential()
-                .reduce(new Result(), Result::sum)
-                .flatMapMany(result -> Flux.just(
-                        result + " from " + file.getFileName(),
-                        String.format("Memory in use while reading: %dMB\n", (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024))
-                ))
-                .doOnNext(log::info)
-                .blockLast());
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
     }
 
     public static Flux<String> fromPath(Path file) {
@@ -103,16 +308,133 @@ public class Application {
         );
     }
 
+    /**
+     * A bucket document or update, and the rollup level whose collection it is written to.
+     */
+    static class Leveled<T> {
+        final int level;
+        final T model;
+
+        Leveled(int level, T model) {
+            this.level = level;
+            this.model = model;
+        }
+    }
+
+    /**
+     * Buckets written with one bulkWrite per rollup level, and the file offset to resume from once they are.
+     */
+    static class WriteBatch {
+        final List<List<InsertOneModel<RawBsonDocument>>> models;
+        final long offset;
+        final List<BulkWriteResult> results = new ArrayList<>();
+
+        WriteBatch(List<List<InsertOneModel<RawBsonDocument>>> models, long offset) {
+            this.models = models;
+            this.offset = offset;
+        }
+
+        int size() {
+            return models.stream().mapToInt(List::size).sum();
+        }
+    }
+
+    /**
+     * Cuts the stream of windows into write batches capped by the controller's current batch size and
+     * by encoded bytes. A batch ending part way through a window resumes from the previous window.
+     */
+    static class WriteBatcher implements Function<BucketAggregator.Window<Leveled<RawBsonDocument>>, List<WriteBatch>> {
+        private final WriteController controller;
+        private final int levels;
+        private List<List<InsertOneModel<RawBsonDocument>>> models;
+        private int size;
+        private long bytes;
+        private long offset = -1;
+
+        WriteBatcher(WriteController controller, int levels) {
+            this.controller = controller;
+            this.levels = levels;
+            this.models = newModels();
+        }
+
+        @Override
+        public List<WriteBatch> apply(BucketAggregator.Window<Leveled<RawBsonDocument>> window) {
+            List<WriteBatch> batches = new ArrayList<>();
+            for (Leveled<RawBsonDocument> doc : window.getBuckets()) {
+                int docSize = doc.model.getByteBuffer().remaining();
+                if (size > 0 && (size >= controller.getBatchSize() || bytes + docSize > controller.getMaxBatchBytes())) {
+                    batches.add(cut());
+                }
+                models.get(doc.level).add(new InsertOneModel<>(doc.model));
+                size++;
+                bytes += docSize;
+            }
+            if (window.getOffset() != BucketAggregator.Window.NONE) {
+                offset = window.getOffset();
+            }
+            if (size >= controller.getBatchSize() || offset == BucketAggregator.Window.END) {
+                batches.add(cut());
+            }
+            return batches;
+        }
+
+        private WriteBatch cut() {
+            WriteBatch batch = new WriteBatch(models, offset);
+            models = newModels();
+            size = 0;
+            bytes = 0;
+            return batch;
+        }
+
+        private List<List<InsertOneModel<RawBsonDocument>>> newModels() {
+            List<List<InsertOneModel<RawBsonDocument>>> levelModels = new ArrayList<>(levels);
+            for (int i = 0; i < levels; i++) {
+                levelModels.add(new ArrayList<>());
+            }
+            return levelModels;
+        }
+    }
+
     static class Result {
+        final String source;
         int inserted = 0;
         int modified = 0;
         int deleted = 0;
         int matched = 0;
+        int files = 0;
+        long bytes = 0;
+        long nanos = 0;
+
+        Result(String source) {
+            this.source = source;
+        }
 
         static Result sum(Result x, BulkWriteResult y) {
             return x.add(y);
         }
 
+        static Result merge(Result x, Result y) {
+            x.inserted += y.inserted;
+            x.modified += y.modified;
+            x.deleted += y.deleted;
+            x.matched += y.matched;
+            x.files += y.files;
+            x.bytes += y.bytes;
+            x.nanos += y.nanos;
+            return x;
+        }
+
+        long documents() {
+            return inserted + modified;
+        }
+
+        private Result finish(long bytes, long nanos) {
+            this.files = 1;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            return this;
+        }
+
         private Result add(BulkWriteResult bulkWriteResult) {
             inserted += bulkWriteResult.getInsertedCount();
             modified += bulkWriteResult.getModifiedCount();
@@ -125,10 +447,13 @@ public class Application {
         @Override
         public String toString() {
             return "Result{" +
-                    "inserted=" + inserted +
+                    "source=" + source +
+                    ", inserted=" + inserted +
                     ", modified=" + modified +
                     ", deleted=" + deleted +
                     ", matched=" + matched +
+                    ", bytes=" + bytes +
+                    ", millis=" + nanos / 1_000_000 +
                     '}';
         }
     }
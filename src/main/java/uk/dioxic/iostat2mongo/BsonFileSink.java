@@ -0,0 +1,32 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.RawBsonDocument;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes a BSON dump: the raw documents back to back, as mongodump does, so the files load with
+ * {@code mongorestore} (with {@code --gzip} when compressed).
+ */
+public class BsonFileSink extends FileSink {
+
+    public BsonFileSink(List<Path> files, boolean compress) throws IOException {
+        super(files, compress);
+    }
+
+    @Override
+    protected void append(RawBsonDocument document, OutputStream out) throws IOException {
+        ByteBuffer bytes = document.getByteBuffer().asNIO();
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.get(copy);
+            out.write(copy);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package uk.dioxic.iostat2mongo;
+
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Mutable aggregate of one series within one bucket, reused from one bucket to the next.
+ */
+@Getter
+public class Bucket {
+
+    private static final int INITIAL_SLOTS = 64;
+
+    private final int series;
+    private final String machine;
+    private final String type;
+    private final String key;
+    private final String metric;
+    private final int slots;
+    private LocalDateTime ts;
+    private double[] values;
+    private final QuantileSketch sketch;
+    private double max;
+    private double min;
+    private double sum;
+    private int count;
+    private int zeros;
+
+    /**
+     * @param slots the number of value slots in a bucket, or 0 to not keep the values
+     */
+    public Bucket(SampleBatch batch, int i, int slots) {
+        this(batch, i, slots, null);
+    }
+
+    /**
+     * @param sketch the empty sketch of the bucket's values, or null to not keep one
+     */
+    public Bucket(SampleBatch batch, int i, int slots, QuantileSketch sketch) {
+        Dimensions dimensions = batch.getDimensions();
+        this.series = batch.series(i);
+        this.machine = dimensions.name(batch.machine());
+        this.type = dimensions.name(batch.type(i));
+        this.key = dimensions.name(batch.key(i));
+        this.metric = dimensions.name(batch.metric(i));
+        this.slots = slots;
+        this.sketch = sketch;
+        if (slots > 0) {
+            values = new double[Math.min(slots, INITIAL_SLOTS)];
+        }
+        reset();
+    }
+
+    /**
+     * A bucket of a coarser level for the series of {@code finer}.
+     */
+    public Bucket(Bucket finer, int slots) {
+        this(finer, slots, null);
+    }
+
+    public Bucket(Bucket finer, int slots, QuantileSketch sketch) {
+        this.series = finer.series;
+        this.machine = finer.machine;
+        this.type = finer.type;
+        this.key = finer.key;
+        this.metric = finer.metric;
+        this.slots = slots;
+        this.sketch = sketch;
+        if (slots > 0) {
+            values = new double[Math.min(slots, INITIAL_SLOTS)];
+        }
+        reset();
+    }
+
+    public void open(LocalDateTime ts) {
+        this.ts = ts;
+    }
+
+    public void add(int offset, double value) {
+        max = Math.max(max, value);
+        min = Math.min(min, value);
+        sum += value;
+        count++;
+        if (value == 0) {
+            zeros++;
+        }
+        if (sketch != null) {
+            sketch.add(value);
+        }
+        set(offset, value);
+    }
+
+    /**
+     * Merges a finished bucket of a finer level; its average becomes the value at {@code offset} and
+     * its sketch is merged into this one.
+     */
+    public void add(int offset, Bucket finer) {
+        max = Math.max(max, finer.max);
+        min = Math.min(min, finer.min);
+        sum += finer.sum;
+        count += finer.count;
+        zeros += finer.zeros;
+        if (sketch != null && finer.sketch != null) {
+            sketch.merge(finer.sketch);
+        }
+        set(offset, finer.sum / finer.count);
+    }
+
+    private void set(int offset, double value) {
+        if (values != null && offset >= 0 && offset < slots) {
+            if (offset >= values.length) {
+                int length = values.length;
+                values = Arrays.copyOf(values, Math.min(slots, Math.max(offset + 1, length * 2)));
+                Arrays.fill(values, length, values.length, Double.NaN);
+            }
+            values[offset] = value;
+        }
+    }
+
+    public void reset() {
+        max = Double.NEGATIVE_INFINITY;
+        min = Double.POSITIVE_INFINITY;
+        sum = 0;
+        count = 0;
+        zeros = 0;
+        if (values != null) {
+            Arrays.fill(values, Double.NaN);
+        }
+        if (sketch != null) {
+            sketch.clear();
+        }
+    }
+
+    /**
+     * Value of the named dimension; the key column is named after the type (e.g. "device").
+     */
+    public Object dimension(String name) {
+        switch (name) {
+            case "machine":
+                return machine;
+            case "type":
+                return type;
+            case "metric":
+                return metric;
+            default:
+                return name.equals(type) ? key : null;
+        }
+    }
+}
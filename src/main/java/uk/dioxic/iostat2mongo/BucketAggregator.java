@@ -0,0 +1,238 @@
+package uk.dioxic.iostat2mongo;
+
+import lombok.Getter;
+import org.bson.Document;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Streams batches into per-series buckets and emits each bucket once, when its window closes.
+ * Batches are assigned to windows by event time, and several windows can be open at once: a window
+ * closes when the watermark (the latest batch timestamp less the allowed lateness) reaches its end,
+ * and batches for a window that has already closed are dropped as late. So out-of-order and gapped
+ * intervals neither merge windows nor split one, and only the windows within the lateness are held.
+ * The bucket accumulators are reused from one window to the next, so the steady state only
+ * allocates the documents that are written. Coarser levels added with {@link #rollup} are built
+ * from the finished buckets of the level below, so every level is computed in the same pass.
+ */
+public class BucketAggregator<T> {
+
+    private static final Object TICK = new Object();
+    private static final Object END = new Object();
+
+    private final Bucketer bucketer;
+    private final Function<Bucket, T> emitter;
+    private final TreeMap<LocalDateTime, BucketTable> open = new TreeMap<>();
+    private final Deque<BucketTable> spare = new ArrayDeque<>();
+    private Duration allowedLateness = Duration.ZERO;
+    private LocalDateTime watermark;
+    private LocalDateTime closedUntil;
+    private BucketAggregator<T> coarser;
+    private long windowsClosed;
+
+    public BucketAggregator(Bucketer bucketer, Function<Bucket, T> emitter) {
+        this.bucketer = bucketer;
+        this.emitter = emitter;
+    }
+
+    public static BucketAggregator<Document> documents(Bucketer bucketer) {
+        return new BucketAggregator<>(bucketer, bucketer::toDocument);
+    }
+
+    /**
+     * Adds a coarser level, fed with the finished buckets of the current coarsest level. The
+     * {@code bucketer}'s resolution should match the bucket level of the level below.
+     */
+    public BucketAggregator<T> rollup(Bucketer bucketer, Function<Bucket, T> emitter) {
+        if (coarser != null) {
+            coarser.rollup(bucketer, emitter);
+        } else {
+            coarser = new BucketAggregator<>(bucketer, emitter);
+        }
+        return this;
+    }
+
+    /**
+     * How far behind the latest batch a batch may be and still join its window (default: none).
+     * Coarser levels are fed in event time order, so they need no lateness of their own.
+     */
+    public BucketAggregator<T> allowedLateness(Duration lateness) {
+        this.allowedLateness = lateness;
+        return this;
+    }
+
+    public Flux<T> aggregate(Flux<SampleBatch> batches) {
+        return batches.concatMapIterable(this::add)
+                .concatWith(Flux.defer(() -> Flux.fromIterable(flushAll())));
+    }
+
+    /**
+     * Like {@link #aggregate(Flux)}, but also flushes the open buckets whenever {@code deadline}
+     * passes, so a bucket is emitted as several partial aggregates. Only suitable for an emitter
+     * that merges partial buckets, such as {@link Bucketer#bucket(Bucket)}.
+     */
+    public Flux<T> follow(Flux<SampleBatch> batches, Duration deadline) {
+        Flux<Object> ticks = Flux.interval(deadline, deadline).map(tick -> TICK);
+
+        return Flux.merge(batches.cast(Object.class).concatWith(Flux.just(END)), ticks)
+                .takeWhile(event -> event != END)
+                .concatMapIterable(event -> event == TICK ? flushAll() : add((SampleBatch) event))
+                .concatWith(Flux.defer(() -> Flux.fromIterable(flushAll())));
+    }
+
+    /**
+     * Like {@link #aggregate(Flux)}, but emits the buckets of each closed window together, with the
+     * file offset to resume from once they are all written. The last window resumes at {@link Window#END}.
+     * With rollup levels, the offset only advances when a window of the coarsest level closes, and then
+     * to the first batch of the coarsest bucket still open, so that bucket is complete when resumed;
+     * other windows have the offset {@link Window#NONE}. A resumed load therefore emits again the
+     * finer buckets written since that batch (up to a day of minute buckets under a daily level), which
+     * only deterministic ids ({@link Bucketer#isDeterministicId()}) keep from being duplicated.
+     */
+    public Flux<Window<T>> windows(Flux<SampleBatch> batches) {
+        BucketAggregator<T> coarsest = coarsest();
+        TreeMap<LocalDateTime, Long> firstOffsets = new TreeMap<>();
+        return batches.<Window<T>>handle((batch, sink) -> {
+                    firstOffsets.putIfAbsent(coarsest.bucketer.truncate(batch.getTs()), batch.getOffset());
+                    long closedBefore = coarsest.windowsClosed;
+                    List<T> closed = add(batch);
+                    if (coarsest.closedUntil != null) {
+                        firstOffsets.headMap(coarsest.closedUntil).clear();
+                    }
+                    if (!closed.isEmpty()) {
+                        long offset = coarsest.windowsClosed == closedBefore ? Window.NONE : firstOffsets.values().stream()
+                                .mapToLong(Long::longValue)
+                                .min()
+                                .orElse(Window.NONE);
+                        sink.next(new Window<>(closed, offset));
+                    }
+                })
+                .concatWith(Mono.fromSupplier(() -> new Window<>(flushAll(), Window.END)));
+    }
+
+    List<T> add(SampleBatch batch) {
+        List<T> closed = advance(batch.getTs().minus(allowedLateness), null);
+        LocalDateTime ts = bucketer.truncate(batch.getTs());
+        if (end(ts).isAfter(watermark)) {
+            bucketer.accumulate(window(ts), batch);
+        } else {
+            PipelineMetrics.get().lateSamples(batch.size());
+        }
+        return closed != null ? closed : Collections.emptyList();
+    }
+
+    private void add(Bucket finer, List<T> emitted) {
+        advance(finer.getTs(), emitted);
+        bucketer.accumulate(window(bucketer.truncate(finer.getTs())), finer);
+    }
+
+    /**
+     * Moves the watermark up to {@code ts} and closes the windows that end at or before it, in time
+     * order, into {@code emitted} (created when needed).
+     */
+    private List<T> advance(LocalDateTime ts, List<T> emitted) {
+        if (watermark == null || ts.isAfter(watermark)) {
+            watermark = ts;
+        }
+        while (!open.isEmpty() && !end(open.firstKey()).isAfter(watermark)) {
+            if (emitted == null) {
+                emitted = new ArrayList<>();
+            }
+            close(open.pollFirstEntry(), emitted);
+        }
+        return emitted;
+    }
+
+    private BucketTable window(LocalDateTime ts) {
+        BucketTable window = open.get(ts);
+        if (window == null) {
+            window = spare.isEmpty() ? new BucketTable() : spare.pop();
+            open.put(ts, window);
+        }
+        return window;
+    }
+
+    private LocalDateTime end(LocalDateTime ts) {
+        return ts.plus(1, bucketer.getBucketLevel());
+    }
+
+    /**
+     * Emits the open buckets of this level, rolling each one up into the next level.
+     */
+    List<T> flush() {
+        List<T> emitted = new ArrayList<>();
+        flush(emitted);
+        return emitted;
+    }
+
+    /**
+     * Emits the open buckets of every level, finest first.
+     */
+    List<T> flushAll() {
+        List<T> emitted = new ArrayList<>();
+        for (BucketAggregator<T> level = this; level != null; level = level.coarser) {
+            level.flush(emitted);
+        }
+        return emitted;
+    }
+
+    private void flush(List<T> emitted) {
+        while (!open.isEmpty()) {
+            close(open.pollFirstEntry(), emitted);
+        }
+    }
+
+    private void close(Map.Entry<LocalDateTime, BucketTable> window, List<T> emitted) {
+        int count = 0;
+        for (Bucket bucket : window.getValue()) {
+            if (bucket.getCount() > 0) {
+                emitted.add(emitter.apply(bucket));
+                count++;
+                if (coarser != null) {
+                    coarser.add(bucket, emitted);
+                }
+                bucket.reset();
+            }
+        }
+        LocalDateTime end = end(window.getKey());
+        if (closedUntil == null || end.isAfter(closedUntil)) {
+            closedUntil = end;
+        }
+        spare.push(window.getValue());
+        windowsClosed++;
+        PipelineMetrics.get().bucketsEmitted(count);
+    }
+
+    private BucketAggregator<T> coarsest() {
+        BucketAggregator<T> level = this;
+        while (level.coarser != null) {
+            level = level.coarser;
+        }
+        return level;
+    }
+
+    @Getter
+    public static class Window<T> {
+        public static final long END = Long.MAX_VALUE;
+        public static final long NONE = -1;
+
+        private final List<T> buckets;
+        private final long offset;
+
+        Window(List<T> buckets, long offset) {
+            this.buckets = buckets;
+            this.offset = offset;
+        }
+    }
+}
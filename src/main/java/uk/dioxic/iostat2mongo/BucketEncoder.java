@@ -0,0 +1,195 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.BsonBinarySubType;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes bucket documents straight to BSON, with the same fields as {@link Bucketer#toDocument(Bucket)}.
+ * Field names, the attributes and the dimension values are encoded once and copied into a buffer that
+ * is reused from one bucket to the next. Not thread safe: use one encoder per aggregator.
+ */
+public class BucketEncoder {
+
+    private final Bucketer bucketer;
+    private final BasicOutputBuffer buffer = new BasicOutputBuffer(1024);
+    private final Map<String, byte[]> strings = new HashMap<>();
+
+    private final byte[] idName;
+    private final byte[] timestampName;
+    private final List<String> dimensionFields;
+    private final byte[][] dimensionNames;
+    private final byte[] attributes;
+    private final byte[] valuesName;
+    private final byte[][] slotNames;
+    private final byte[] maxName;
+    private final byte[] minName;
+    private final byte[] countName;
+    private final byte[] zeroName;
+    private final byte[] sumName;
+    private final byte[] avgName;
+    private final byte[][] percentileNames;
+    private final byte[] sketchName;
+
+    public BucketEncoder(Bucketer bucketer) {
+        this.bucketer = bucketer;
+        this.idName = name(BsonType.OBJECT_ID, "_id");
+        this.timestampName = name(BsonType.DATE_TIME, bucketer.getTimestampField());
+        this.dimensionFields = bucketer.getDimensionFields();
+        this.dimensionNames = dimensionFields.stream()
+                .map(field -> name(BsonType.STRING, field))
+                .toArray(byte[][]::new);
+        this.attributes = elements(new Document(bucketer.getAttributes()));
+        this.valuesName = name(bucketer.isPackValues() ? BsonType.BINARY : BsonType.DOCUMENT, bucketer.getValueField());
+        this.slotNames = new byte[bucketer.isIncludeValues() && !bucketer.isPackValues() ? bucketer.slots() : 0][];
+        for (int i = 0; i < slotNames.length; i++) {
+            slotNames[i] = name(BsonType.DOUBLE, Integer.toString(i));
+        }
+        this.maxName = name(BsonType.DOUBLE, bucketer.getMaxField());
+        this.minName = name(BsonType.DOUBLE, bucketer.getMinField());
+        this.countName = name(BsonType.INT32, bucketer.getCountField());
+        this.zeroName = name(BsonType.INT32, bucketer.getZeroField());
+        this.sumName = name(BsonType.DOUBLE, bucketer.getSumField());
+        this.avgName = name(BsonType.DOUBLE, bucketer.getAvgField());
+        this.percentileNames = bucketer.getPercentiles().stream()
+                .map(p -> name(BsonType.DOUBLE, Bucketer.percentileField(p)))
+                .toArray(byte[][]::new);
+        this.sketchName = name(BsonType.BINARY, bucketer.getSketchField());
+    }
+
+    public RawBsonDocument encode(Bucket bucket) {
+        buffer.truncateToPosition(0);
+        buffer.writeInt32(0);
+
+        if (bucketer.isDeterministicId()) {
+            buffer.write(idName);
+            buffer.writeObjectId(bucketer.id(bucket));
+        }
+
+        buffer.write(timestampName);
+        buffer.writeInt64(toMillis(bucket.getTs()));
+
+        for (int i = 0; i < dimensionNames.length; i++) {
+            Object value = bucket.dimension(dimensionFields.get(i));
+            if (value != null) {
+                buffer.write(dimensionNames[i]);
+                buffer.write(string(value.toString()));
+            }
+        }
+
+        buffer.write(attributes);
+
+        if (bucketer.isIncludeValues() && bucketer.isPackValues()) {
+            byte[] packed = ValuesCodec.encode(bucket.getValues());
+            buffer.write(valuesName);
+            buffer.writeInt32(packed.length);
+            buffer.write(BsonBinarySubType.USER_DEFINED.getValue());
+            buffer.write(packed);
+        } else if (bucketer.isIncludeValues()) {
+            buffer.write(valuesName);
+            int start = buffer.getPosition();
+            buffer.writeInt32(0);
+            double[] slots = bucket.getValues();
+            for (int i = 0; i < Math.min(slots.length, slotNames.length); i++) {
+                if (!Double.isNaN(slots[i])) {
+                    buffer.write(slotNames[i]);
+                    buffer.writeDouble(slots[i]);
+                }
+            }
+            buffer.write(0);
+            buffer.writeInt32(start, buffer.getPosition() - start);
+        }
+
+        if (bucketer.isIncludeMax()) {
+            buffer.write(maxName);
+            buffer.writeDouble(bucket.getMax());
+        }
+
+        if (bucketer.isIncludeMin()) {
+            buffer.write(minName);
+            buffer.writeDouble(bucket.getMin());
+        }
+
+        if (bucketer.isIncludeCount() || bucketer.isIncludeAvg()) {
+            buffer.write(countName);
+            buffer.writeInt32(bucket.getCount());
+            buffer.write(zeroName);
+            buffer.writeInt32(bucket.getZeros());
+        }
+
+        if (bucketer.isIncludeAvg()) {
+            buffer.write(sumName);
+            buffer.writeDouble(bucket.getSum());
+            buffer.write(avgName);
+            buffer.writeDouble(bucket.getSum() / bucket.getCount());
+        }
+
+        if (bucketer.isIncludeSketch()) {
+            List<Double> percentiles = bucketer.getPercentiles();
+            for (int i = 0; i < percentileNames.length; i++) {
+                buffer.write(percentileNames[i]);
+                buffer.writeDouble(bucketer.percentile(bucket, percentiles.get(i)));
+            }
+            byte[] sketch = bucket.getSketch().encode();
+            buffer.write(sketchName);
+            buffer.writeInt32(sketch.length);
+            buffer.write(BsonBinarySubType.USER_DEFINED.getValue());
+            buffer.write(sketch);
+        }
+
+        buffer.write(0);
+        buffer.writeInt32(0, buffer.getPosition());
+
+        return new RawBsonDocument(buffer.toByteArray());
+    }
+
+    /**
+     * The BSON string value (length, bytes and terminator), cached per distinct dimension value.
+     */
+    private byte[] string(String value) {
+        return strings.computeIfAbsent(value, s -> {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            BasicOutputBuffer out = new BasicOutputBuffer(utf8.length + 5);
+            out.writeInt32(utf8.length + 1);
+            out.write(utf8);
+            out.write(0);
+            return out.toByteArray();
+        });
+    }
+
+    /**
+     * The element header: type byte followed by the field name as a cstring.
+     */
+    private static byte[] name(BsonType type, String name) {
+        BasicOutputBuffer out = new BasicOutputBuffer(name.length() + 2);
+        out.write(type.getValue());
+        out.writeCString(name);
+        return out.toByteArray();
+    }
+
+    /**
+     * The encoded elements of a document, without its length prefix and terminator.
+     */
+    private static byte[] elements(Document document) {
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        DocumentUtil.getDocumentCodec().encode(new BsonBinaryWriter(out), document, EncoderContext.builder().build());
+        byte[] bytes = out.toByteArray();
+        return Arrays.copyOfRange(bytes, 4, bytes.length - 1);
+    }
+
+    private static long toMillis(LocalDateTime ts) {
+        return ts.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+}
@@ -0,0 +1,62 @@
+package uk.dioxic.iostat2mongo;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The bucket of each series, indexed by the dense series id of {@link Dimensions#series}. All batches
+ * added to a table must share one {@link Dimensions}.
+ */
+public class BucketTable implements Iterable<Bucket> {
+
+    private Bucket[] buckets = new Bucket[64];
+    private int size;
+
+    public Bucket get(int series) {
+        return series < buckets.length ? buckets[series] : null;
+    }
+
+    public void put(int series, Bucket bucket) {
+        if (series >= buckets.length) {
+            buckets = Arrays.copyOf(buckets, Math.max(series + 1, buckets.length * 2));
+        }
+        if (buckets[series] == null) {
+            size++;
+        }
+        buckets[series] = bucket;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Bucket> iterator() {
+        return new Iterator<>() {
+            private int next = advance(0);
+
+            @Override
+            public boolean hasNext() {
+                return next < buckets.length;
+            }
+
+            @Override
+            public Bucket next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Bucket bucket = buckets[next];
+                next = advance(next + 1);
+                return bucket;
+            }
+
+            private int advance(int i) {
+                while (i < buckets.length && buckets[i] == null) {
+                    i++;
+                }
+                return i;
+            }
+        };
+    }
+}
@@ -6,12 +6,18 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Singular;
+import org.bson.BsonBinarySubType;
 import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @Builder
@@ -32,18 +38,30 @@ public class Bucketer {
     @NonNull private ChronoUnit resolution;
     @NonNull @Singular private List<String> dimensionFields;
     @NonNull @Singular private List<String> factFields;
+    @Singular private Map<String, Object> attributes;
     @Builder.Default private String timestampField = "ts";
     @Builder.Default private String maxField = "max";
     @Builder.Default private String minField = "min";
     @Builder.Default private String avgField = "avg";
     @Builder.Default private String sumField = "sum";
     @Builder.Default private String countField = "count";
+    /** the number of zero samples within the count, so that the average of the non-zero ones is (sum / (count - zeros)) */
+    @Builder.Default private String zeroField = "zeros";
     @Builder.Default private String valueField = "values";
     @Builder.Default private boolean includeMax = true;
     @Builder.Default private boolean includeMin = true;
     @Builder.Default private boolean includeAvg = true;
     @Builder.Default private boolean includeCount = true;
     @Builder.Default private boolean includeValues = true;
+    /** store the values of inserted buckets as one BinData field packed by {@link ValuesCodec}; upserts keep a field per slot */
+    @Builder.Default private boolean packValues = false;
+    /** give buckets the {@link #id(Bucket)} of their series and time, so writing a bucket again is a duplicate key */
+    @Builder.Default private boolean deterministicId = false;
+    /** keep a {@link QuantileSketch} per bucket, written as a BinData with the percentiles it gives */
+    @Builder.Default private boolean includeSketch = false;
+    @Builder.Default private double sketchAccuracy = 0.01;
+    @Builder.Default private String sketchField = "sketch";
+    @Builder.Default private List<Double> percentiles = List.of(50d, 95d, 99d);
 
     public UpdateOneModel<Document> bucket(Document document) {
         LocalDateTime ts = document.get(timestampField, LocalDateTime.class);
@@ -82,8 +100,10 @@ public class Bucketer {
                 maxDoc.put(maxField, fact);
             if (includeMin)
                 minDoc.put(minField, fact);
-            if (includeCount)
+            if (includeCount) {
                 countDoc.put(countField, 1);
+                countDoc.put(zeroField, fact instanceof Number && ((Number) fact).doubleValue() == 0 ? 1 : 0);
+            }
         }
         else {
             factFields.forEach(fact -> {
@@ -108,6 +128,57 @@ public class Bucketer {
         return new UpdateOneModel<>(filter, update, options);
     }
 
+    /**
+     * Upserts a (possibly partial) bucket aggregate; repeated upserts of the same bucket merge
+     * through $max/$min/$inc. An upsert cannot derive a field from the merged ones, so these buckets
+     * have no avg field: their average is sum / count, which inserted buckets also have.
+     */
+    public UpdateOneModel<Document> bucket(Bucket bucket) {
+        Document filter = new Document();
+        if (deterministicId)
+            filter.put("_id", id(bucket));
+        filter.put(timestampField, bucket.getTs());
+
+        dimensionFields.forEach(dim -> {
+            Object value = bucket.dimension(dim);
+            if (value != null)
+                filter.put(dim, value);
+        });
+
+        Document update = new Document();
+
+        if (!attributes.isEmpty())
+            update.put("$setOnInsert", new Document(attributes));
+
+        if (includeMax)
+            update.put("$max", new Document(maxField, bucket.getMax()));
+
+        if (includeMin)
+            update.put("$min", new Document(minField, bucket.getMin()));
+
+        Document incDoc = new Document();
+        if (includeCount || includeAvg) {
+            incDoc.put(countField, bucket.getCount());
+            incDoc.put(zeroField, bucket.getZeros());
+        }
+        if (includeAvg)
+            incDoc.put(sumField, bucket.getSum());
+        if (!incDoc.isEmpty())
+            update.put("$inc", incDoc);
+
+        if (includeValues) {
+            Document setDoc = new Document();
+            double[] slots = bucket.getValues();
+            for (int i = 0; i < slots.length; i++) {
+                if (!Double.isNaN(slots[i]))
+                    setDoc.put(valueField + "." + i, slots[i]);
+            }
+            update.put("$set", setDoc);
+        }
+
+        return new UpdateOneModel<>(filter, update, options);
+    }
+
     public Document combine(Document x, Document y) {
         Document doc = new Document();
 
@@ -130,13 +201,15 @@ public class Bucketer {
         }
 
         if (includeMax)
-            doc.put(maxField, Math.max(x.get(maxField, Double.MIN_VALUE), y.getDouble("value")));
+            doc.put(maxField, Math.max(x.get(maxField, Double.NEGATIVE_INFINITY), y.getDouble("value")));
 
         if (includeMin)
-            doc.put(minField, Math.min(x.get(minField, Double.MAX_VALUE), y.getDouble("value")));
+            doc.put(minField, Math.min(x.get(minField, Double.POSITIVE_INFINITY), y.getDouble("value")));
 
-        if (includeCount || includeAvg)
+        if (includeCount || includeAvg) {
             doc.put(countField, x.getInteger(countField, 0)+1);
+            doc.put(zeroField, x.getInteger(zeroField, 0) + (y.getDouble("value") == 0 ? 1 : 0));
+        }
 
         if (includeAvg) {
             double sum = x.get(sumField, 0d) + y.getDouble("value");
@@ -147,19 +220,181 @@ public class Bucketer {
         return doc;
     }
 
+    /**
+     * Folds every sample of the batch into the bucket of its series.
+     */
+    public BucketTable accumulate(BucketTable buckets, SampleBatch batch) {
+        LocalDateTime bucketTs = truncate(batch.getTs());
+        int bucketOffset = offset(bucketTs, batch.getTs());
+
+        for (int i = 0; i < batch.size(); i++) {
+            int series = batch.series(i);
+            Bucket bucket = buckets.get(series);
+            if (bucket == null) {
+                bucket = new Bucket(batch, i, includeValues ? slots() : 0, newSketch());
+                buckets.put(series, bucket);
+            }
+            if (bucket.getCount() == 0) {
+                bucket.open(bucketTs);
+                PipelineMetrics.get().bucketOpened();
+            }
+            bucket.add(bucketOffset, batch.value(i));
+        }
+        return buckets;
+    }
+
+    /**
+     * Folds a finished bucket of a finer level into the bucket of its series at this level.
+     */
+    public BucketTable accumulate(BucketTable buckets, Bucket finer) {
+        LocalDateTime bucketTs = truncate(finer.getTs());
+        Bucket bucket = buckets.get(finer.getSeries());
+        if (bucket == null) {
+            bucket = new Bucket(finer, includeValues ? slots() : 0, newSketch());
+            buckets.put(finer.getSeries(), bucket);
+        }
+        if (bucket.getCount() == 0) {
+            bucket.open(bucketTs);
+            PipelineMetrics.get().bucketOpened();
+        }
+        bucket.add(offset(bucketTs, finer.getTs()), finer);
+        return buckets;
+    }
+
+    /**
+     * Builds the document written for a bucket, with the same fields as {@link #combine(Document, Document)}
+     * unless the values are packed, and as the upserts of {@link #bucket(Bucket)} plus the avg.
+     */
+    public Document toDocument(Bucket bucket) {
+        Document doc = new Document();
+        if (deterministicId)
+            doc.put("_id", id(bucket));
+        doc.put(timestampField, bucket.getTs());
+
+        dimensionFields.forEach(dim -> {
+            Object value = bucket.dimension(dim);
+            if (value != null)
+                doc.put(dim, value);
+        });
+
+        doc.putAll(attributes);
+
+        if (includeValues && packValues) {
+            doc.put(valueField, new Binary(BsonBinarySubType.USER_DEFINED, ValuesCodec.encode(bucket.getValues())));
+        } else if (includeValues) {
+            Document values = new Document();
+            double[] slots = bucket.getValues();
+            for (int i = 0; i < slots.length; i++) {
+                if (!Double.isNaN(slots[i]))
+                    values.put(Integer.toString(i), slots[i]);
+            }
+            doc.put(valueField, values);
+        }
+
+        if (includeMax)
+            doc.put(maxField, bucket.getMax());
+
+        if (includeMin)
+            doc.put(minField, bucket.getMin());
+
+        if (includeCount || includeAvg) {
+            doc.put(countField, bucket.getCount());
+            doc.put(zeroField, bucket.getZeros());
+        }
+
+        if (includeAvg) {
+            doc.put(sumField, bucket.getSum());
+            doc.put(avgField, bucket.getSum() / bucket.getCount());
+        }
+
+        if (includeSketch) {
+            percentiles.forEach(p -> doc.put(percentileField(p), percentile(bucket, p)));
+            doc.put(sketchField, new Binary(BsonBinarySubType.USER_DEFINED, bucket.getSketch().encode()));
+        }
+
+        return doc;
+    }
+
+    /**
+     * The field of a percentile: p50, p99, p99_9...
+     */
+    public static String percentileField(double percentile) {
+        String name = percentile == Math.rint(percentile)
+                ? Long.toString((long) percentile)
+                : Double.toString(percentile).replace('.', '_');
+        return "p" + name;
+    }
+
+    /**
+     * The percentile of a bucket's sketch, within the min and max of its values.
+     */
+    public double percentile(Bucket bucket, double percentile) {
+        double value = bucket.getSketch().quantile(percentile / 100);
+        return Math.max(bucket.getMin(), Math.min(bucket.getMax(), value));
+    }
+
+    private QuantileSketch newSketch() {
+        return includeSketch ? new QuantileSketch(sketchAccuracy) : null;
+    }
+
     public boolean splitOn(LocalDateTime ts) {
         return ts.equals(truncate(ts));
     }
 
+    /**
+     * Identifies the series of a document; values are joined in dimension field order with a separator
+     * that cannot occur in them, so "sda" + "1" and "sd" + "a1" no longer collide.
+     */
     public String dimensionKey(Document doc) {
-        return doc.keySet().stream()
-                .filter(dimensionFields::contains)
-                .map(doc::get)
-                .map(Object::toString)
-                .collect(Collectors.joining());
+        return dimensionFields.stream()
+                .map(dim -> doc.containsKey(dim) ? String.valueOf(doc.get(dim)) : "")
+                .collect(Collectors.joining("\u0000"));
+    }
+
+    /**
+     * The id of a bucket: its time in seconds (as the ObjectId timestamp, so ids sort by time) followed by
+     * a 64-bit FNV-1a hash of its dimension values, joined as in {@link #dimensionKey(Document)}. The same
+     * series and bucket time give the same id in every run.
+     */
+    public ObjectId id(Bucket bucket) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < dimensionFields.size(); i++) {
+            if (i > 0)
+                hash *= 0x100000001b3L;
+            Object value = bucket.dimension(dimensionFields.get(i));
+            String s = value != null ? value.toString() : "";
+            for (int j = 0; j < s.length(); j++) {
+                char c = s.charAt(j);
+                hash = (hash ^ (c & 0xFF)) * 0x100000001b3L;
+                hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+            }
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(12);
+        bytes.putInt((int) bucket.getTs().toEpochSecond(ZoneOffset.UTC));
+        bytes.putLong(hash);
+        return new ObjectId(bytes.array());
+    }
+
+    /**
+     * The number of value slots a bucket needs: the largest offset within a bucket, plus one.
+     */
+    public int slots() {
+        long span;
+        switch (bucketLevel) {
+            case YEARS:
+                span = Duration.ofDays(366).getSeconds();
+                break;
+            case MONTHS:
+                span = Duration.ofDays(31).getSeconds();
+                break;
+            default:
+                span = bucketLevel.getDuration().getSeconds();
+        }
+        long unit = resolution.getDuration().getSeconds();
+        return (int) (span / unit) + 2;
     }
 
-    private int offset(LocalDateTime bucketTs, LocalDateTime ts) {
+    int offset(LocalDateTime bucketTs, LocalDateTime ts) {
         Duration duration = Duration.between(bucketTs, ts);
         switch (resolution) {
             case YEARS:
@@ -0,0 +1,124 @@
+package uk.dioxic.iostat2mongo;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Exceptions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records, per input file, the offset from which a load can resume: every bucket before it has
+ * been acknowledged by the server. Files are identified by path plus a fingerprint of their first
+ * bytes, so a file that has grown keeps its checkpoint while a replaced file starts over.
+ */
+@Slf4j
+public class CheckpointStore {
+
+    private static final int FINGERPRINT_BYTES = 64 * 1024;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Path path;
+    private final Map<String, Checkpoint> checkpoints;
+
+    public CheckpointStore(Path path) {
+        this.path = path;
+        try {
+            checkpoints = Files.exists(path)
+                    ? mapper.readValue(path.toFile(), new TypeReference<HashMap<String, Checkpoint>>() {})
+                    : new HashMap<>();
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /**
+     * The checkpoint of the file, or a new one starting at offset 0 if the file is unknown or has been replaced.
+     */
+    public synchronized Checkpoint get(Path file) {
+        String key = file.toAbsolutePath().toString();
+        String fingerprint = fingerprint(file);
+        Checkpoint checkpoint = checkpoints.get(key);
+
+        if (checkpoint == null || !fingerprint.equals(checkpoint.getFingerprint())) {
+            checkpoint = new Checkpoint();
+            checkpoint.setPath(key);
+            checkpoint.setFingerprint(fingerprint);
+            checkpoints.put(key, checkpoint);
+        }
+        checkpoint.setSize(size(file));
+        return checkpoint;
+    }
+
+    /**
+     * Moves the file's checkpoint forward to {@code offset} and persists the store.
+     */
+    public synchronized void acknowledge(Checkpoint checkpoint, long offset) {
+        if (offset < 0 || offset <= checkpoint.getOffset()) {
+            return;
+        }
+        checkpoint.setOffset(Math.min(offset, checkpoint.getSize()));
+        save();
+    }
+
+    private void save() {
+        try {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            mapper.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), checkpoints);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    static String fingerprint(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int remaining = FINGERPRINT_BYTES;
+            int n;
+            while (remaining > 0 && (n = in.read(buffer, 0, Math.min(buffer.length, remaining))) > 0) {
+                digest.update(buffer, 0, n);
+                remaining -= n;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    @Data
+    public static class Checkpoint {
+        private String path;
+        private String fingerprint;
+        private long size;
+        private long offset;
+
+        @JsonIgnore
+        public boolean isComplete() {
+            return size > 0 && offset >= size;
+        }
+    }
+}
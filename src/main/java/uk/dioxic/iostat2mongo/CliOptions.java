@@ -10,15 +10,16 @@ import com.mongodb.reactivestreams.client.MongoDatabase;
 import lombok.Getter;
 import org.apache.commons.cli.*;
 import org.bson.Document;
-import reactor.core.Exceptions;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.stream.Collectors;
 
 @Getter
@@ -28,23 +29,46 @@ public class CliOptions {
     private MongoCollection<Document> collection;
     private MongoDatabase database;
     private int batchSize;
+    private long batchBytes;
+    private int writers;
+    private Duration writeLatency;
     private int threads;
     private Path path;
-    private Path logFile;
+    private String inputFormat;
+    private Path output;
+    private String outputFormat;
+    private boolean gzip;
     private Document attributes;
     private String username;
     private String password;
     private String authenticationDatabase;
     private List<String> filters;
-
-    private BufferedWriter bw;
+    private List<String> devices;
+    private boolean mapped;
+    private int splits;
+    private boolean follow;
+    private Duration latency;
+    private Duration allowedLateness;
+    private CheckpointStore checkpoints;
+    private Duration metricsInterval;
+    private List<Rollup> rollups;
+    private boolean includeValues;
+    private boolean packValues;
+    private boolean idempotent;
+    private List<Double> percentiles;
+    private Path journal;
+    private long journalSize;
 
     public CliOptions(String[] args) {
         Options options = new Options();
         options.addRequiredOption("f", "path", true, "iostat path path");
+        options.addOption("i", "inputFormat", true, "format of the files: auto (detected per file), iostat, iostat-json, sar, mpstat or vmstat (default: auto)");
         options.addOption("h", "uri", true, "mongodb uri");
-        options.addOption("b","batchSize", true, "mongodb bulkwrite batch size");
-        options.addOption("t", "threads", true, "writer threads (defaults to CPU core count)");
+        options.addOption("b","batchSize", true, "max documents per mongodb bulkwrite (default: 1000)");
+        options.addOption("B","batchBytes", true, "max MB per mongodb bulkwrite (default: 16)");
+        options.addOption("w","writers", true, "max concurrent mongodb bulkwrites (default: 8)");
+        options.addOption("T","writeLatency", true, "bulkwrite latency in milliseconds above which batches and concurrency back off (default: 1000)");
+        options.addOption("t", "threads", true, "files loaded concurrently (defaults to CPU core count)");
         options.addOption("d", "database", true, "mongodb database");
         options.addOption("c", "collection", true, "mongodb collection");
         options.addOption("x", "attributes", true, "additional attributes to add to the mongodb documents (expected JSON)");
@@ -54,7 +78,24 @@ public class CliOptions {
         options.addOption("s", "ssl", false, "enable SSL");
         options.addOption("P", "poolSize", true, "connection pool size (default: 100)");
         options.addOption("F", "filters", true, "comma-delimited list of metrics to include (default: all)");
-        options.addOption("l","log", true, "log file path");
+        options.addOption("D", "devices", true, "comma-delimited list of device name globs to include, e.g. nvme* (default: all)");
+        options.addOption("o", "out", true, "write the bucket documents to files under this directory, as <out>/<database>/<collection>.<format>, instead of mongodb");
+        options.addOption("O", "outFormat", true, "format of the -o files: bson (mongorestore) or json (mongoimport) (default: bson)");
+        options.addOption("z", "gzip", false, "gzip the -o files");
+        options.addOption("M", "mmap", false, "parse files with the memory-mapped tokenizer");
+        options.addOption("S", "splits", true, "parse each large file as this many parallel ranges (default: 1)");
+        options.addOption("W", "follow", false, "follow a growing file (or stdin with -f -) and upsert partial buckets, which have sum and count but no avg field");
+        options.addOption("L", "latency", true, "follow mode flush deadline in milliseconds (default: 5000)");
+        options.addOption("A", "lateness", true, "seconds an interval may arrive behind the latest one and still join its bucket; later ones are dropped (default: 0)");
+        options.addOption("C", "checkpoint", true, "checkpoint file used to skip loaded files and resume partly loaded ones");
+        options.addOption("R", "rollups", true, "comma-delimited bucket levels written in one pass as bucket:resolution, finest first; "
+                + "each resolution is the bucket of the level before, and levels after the first go to <collection>_<bucket> (default: minute:second)");
+        options.addOption("V", "values", true, "how bucket documents keep their samples: none, fields (one per offset) or packed (one compressed BinData) (default: none)");
+        options.addOption("Q", "percentiles", true, "comma-delimited percentiles written per bucket from a mergeable sketch of its values, e.g. 50,95,99 (default: none)");
+        options.addOption("j", "journal", true, "spill the bucket documents to this memory-mapped journal, written to the target as fast as it accepts them and replayed after a crash");
+        options.addOption("J", "journalSize", true, "max MB held in the -j journal before parsing waits for it to drain (default: 1024)");
+        options.addOption("I", "idempotent", false, "derive bucket _ids from the series and bucket time, so reloads and retried writes skip documents already written");
+        options.addOption("m", "metrics", true, "seconds between pipeline metrics log lines, 0 to disable (default: 10)");
 
         CommandLineParser parser = new DefaultParser();
 
@@ -84,9 +125,49 @@ public class CliOptions {
             database = client.getDatabase(cli.getOptionValue('d', "test"));
             collection = database.getCollection(cli.getOptionValue('c', "iostats"));
             batchSize = Integer.parseInt(cli.getOptionValue('b', "1000"));
-            threads = Integer.parseInt(cli.getOptionValue('t', "1"));
+            batchBytes = Long.parseLong(cli.getOptionValue('B', "16")) * 1024 * 1024;
+            writers = Integer.parseInt(cli.getOptionValue('w', "8"));
+            writeLatency = Duration.ofMillis(Long.parseLong(cli.getOptionValue('T', "1000")));
+            threads = Integer.parseInt(cli.getOptionValue('t', Integer.toString(Runtime.getRuntime().availableProcessors())));
             filters = List.of(cli.getOptionValue('F', "").split("\\s*,\\s*"));
+            devices = List.of(cli.getOptionValue('D', "").split("\\s*,\\s*"));
             attributes = cli.hasOption('x') ? Document.parse(cli.getOptionValue('x')) : new Document();
+            mapped = cli.hasOption('M');
+            splits = Integer.parseInt(cli.getOptionValue('S', "1"));
+            follow = cli.hasOption('W');
+            latency = Duration.ofMillis(Long.parseLong(cli.getOptionValue('L', "5000")));
+            allowedLateness = Duration.ofSeconds(Long.parseLong(cli.getOptionValue('A', "0")));
+            metricsInterval = Duration.ofSeconds(Long.parseLong(cli.getOptionValue('m', "10")));
+            rollups = parseRollups(cli.getOptionValue('R', "minute:second"));
+            switch (cli.getOptionValue('V', "none")) {
+                case "none":
+                    break;
+                case "packed":
+                    packValues = true;
+                    includeValues = true;
+                    break;
+                case "fields":
+                    includeValues = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("values must be none, fields or packed, got " + cli.getOptionValue('V'));
+            }
+
+            idempotent = cli.hasOption('I');
+
+            if (cli.hasOption('j'))
+                journal = Paths.get(cli.getOptionValue('j'));
+            journalSize = Long.parseLong(cli.getOptionValue('J', "1024")) * 1024 * 1024;
+
+            if (cli.hasOption('Q'))
+                percentiles = parsePercentiles(cli.getOptionValue('Q'));
+
+            if (cli.hasOption('C'))
+                checkpoints = new CheckpointStore(Paths.get(cli.getOptionValue('C')));
+
+            // a resumed file rewrites the finer buckets of the coarsest bucket it stopped in
+            if (checkpoints != null && rollups.size() > 1 && !idempotent)
+                throw new IllegalArgumentException("resuming with rollups rewrites the finer buckets since the last coarsest bucket, so -C with -R levels needs -I");
 
             if (cli.hasOption('x'))
                 attributes = Document.parse(cli.getOptionValue('x'));
@@ -94,8 +175,22 @@ public class CliOptions {
             if (cli.hasOption('f'))
                 path = Paths.get(cli.getOptionValue('f'));
 
-            if (cli.hasOption('l'))
-                logFile = Paths.get(cli.getOptionValue('l'));
+            inputFormat = cli.getOptionValue('i', "auto");
+            if (!inputFormat.equals("auto"))
+                SampleFormat.named(inputFormat);
+            if (follow && inputFormat.equals("sar"))
+                throw new IllegalArgumentException("sar reports are only complete at the end of the file and cannot be followed");
+
+            if (cli.hasOption('o'))
+                output = Paths.get(cli.getOptionValue('o'));
+
+            if (output != null && checkpoints != null)
+                throw new IllegalArgumentException("checkpoints resume loads into mongodb; -o files are rewritten on each run, so -C cannot be used with -o");
+
+            outputFormat = cli.getOptionValue('O', "bson");
+            if (!outputFormat.equals("bson") && !outputFormat.equals("json"))
+                throw new IllegalArgumentException("outFormat must be bson or json, got " + outputFormat);
+            gzip = cli.hasOption('z');
 
         } catch (ParseException e) {
             HelpFormatter help = new HelpFormatter();
@@ -114,44 +209,124 @@ public class CliOptions {
         }
     }
 
-    public void log(Document doc) {
-        if (logFile != null)
-            try {
-                if (bw == null) {
-                    bw = Files.newBufferedWriter(logFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                }
-                bw.write(DocumentUtil.toJson(doc) + "\n");
+    private List<Rollup> parseRollups(String value) {
+        List<Rollup> levels = new ArrayList<>();
+        for (String level : value.split("\\s*,\\s*")) {
+            String[] units = level.split(":");
+            if (units.length != 2) {
+                throw new IllegalArgumentException("rollup level must be bucket:resolution, got " + level);
+            }
+            ChronoUnit bucketLevel = unit(units[0]);
+            ChronoUnit resolution = unit(units[1]);
+            if (resolution.compareTo(bucketLevel) >= 0) {
+                throw new IllegalArgumentException("rollup resolution must be finer than its bucket, got " + level);
             }
-            catch (IOException e){
-                throw Exceptions.propagate(e);
+            if (!levels.isEmpty() && bucketLevel.compareTo(levels.get(levels.size() - 1).bucketLevel) <= 0) {
+                throw new IllegalArgumentException("rollup levels must get coarser, got " + value);
             }
+            // each slot of a level holds one bucket of the level below
+            if (!levels.isEmpty() && resolution != levels.get(levels.size() - 1).bucketLevel) {
+                throw new IllegalArgumentException("rollup resolution must be the bucket of the level below, got " + value);
+            }
+            MongoCollection<Document> target = levels.isEmpty()
+                    ? collection
+                    : database.getCollection(collection.getNamespace().getCollectionName() + "_" + units[0].toLowerCase(Locale.ROOT));
+            levels.add(new Rollup(bucketLevel, resolution, target));
+        }
+        return levels;
     }
 
-    public void cleanup() {
-        client.close();
-        if (bw != null) {
-            try {
-                bw.close();
-            } catch (IOException e) {
-                throw Exceptions.propagate(e);
+    private static List<Double> parsePercentiles(String value) {
+        List<Double> percentiles = new ArrayList<>();
+        for (String percentile : value.split("\\s*,\\s*")) {
+            double p = Double.parseDouble(percentile);
+            if (p < 0 || p > 100) {
+                throw new IllegalArgumentException("percentiles must be between 0 and 100, got " + percentile);
             }
+            percentiles.add(p);
+        }
+        return percentiles;
+    }
+
+    private static ChronoUnit unit(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "second":
+                return ChronoUnit.SECONDS;
+            case "minute":
+                return ChronoUnit.MINUTES;
+            case "hour":
+                return ChronoUnit.HOURS;
+            case "day":
+                return ChronoUnit.DAYS;
+            case "month":
+                return ChronoUnit.MONTHS;
+            case "year":
+                return ChronoUnit.YEARS;
+            default:
+                throw new IllegalArgumentException("unknown time unit " + name);
         }
     }
 
+    public void cleanup() {
+        client.close();
+    }
+
     @Override
     public String toString() {
         return "CliOptions{" +
                 "collection=" + collection.getNamespace() +
                 ", database=" + database.getName() +
                 ", batchSize=" + batchSize +
+                ", batchBytes=" + batchBytes +
+                ", writers=" + writers +
+                ", writeLatency=" + writeLatency +
                 ", threads=" + threads +
                 ", path=" + path +
-                ", logFile=" + logFile +
+                ", inputFormat=" + inputFormat +
+                ", output=" + output +
+                ", outputFormat=" + outputFormat +
+                ", gzip=" + gzip +
                 ", attributes=" + attributes +
                 ", username='" + username + '\'' +
                 ", password='" + password + '\'' +
                 ", authenticationDatabase='" + authenticationDatabase + '\'' +
                 ", filters=" + filters +
+                ", devices=" + devices +
+                ", mapped=" + mapped +
+                ", splits=" + splits +
+                ", follow=" + follow +
+                ", latency=" + latency +
+                ", allowedLateness=" + allowedLateness +
+                ", checkpoint=" + (checkpoints != null) +
+                ", metricsInterval=" + metricsInterval +
+                ", rollups=" + rollups +
+                ", includeValues=" + includeValues +
+                ", packValues=" + packValues +
+                ", idempotent=" + idempotent +
+                ", percentiles=" + percentiles +
+                ", journal=" + journal +
+                ", journalSize=" + journalSize +
                 '}';
     }
+
+    /**
+     * One level of the rollup pyramid and the collection its buckets are written to.
+     */
+    @Getter
+    public static class Rollup {
+        private final ChronoUnit bucketLevel;
+        private final ChronoUnit resolution;
+        private final MongoCollection<Document> collection;
+
+        Rollup(ChronoUnit bucketLevel, ChronoUnit resolution, MongoCollection<Document> collection) {
+            this.bucketLevel = bucketLevel;
+            this.resolution = resolution;
+            this.collection = collection;
+        }
+
+        @Override
+        public String toString() {
+            return collection.getNamespace().getCollectionName() + "=" + bucketLevel + ":" + resolution;
+        }
+    }
 }
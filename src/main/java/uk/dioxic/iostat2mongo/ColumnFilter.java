@@ -0,0 +1,97 @@
+package uk.dioxic.iostat2mongo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves the metric and device filters into a column mask per header line, so excluded
+ * columns and devices are skipped before their values are parsed.
+ */
+public class ColumnFilter {
+
+    /**
+     * Mask of a header line with no included column.
+     */
+    public static final boolean[] NONE = new boolean[0];
+
+    private final Set<String> metrics;
+    private final List<Pattern> devices;
+    private final Map<String, Boolean> included = new ConcurrentHashMap<>();
+
+    /**
+     * @param metrics metric names to include, all when empty
+     * @param devices device name globs (e.g. {@code nvme*}) to include, all when empty
+     */
+    public ColumnFilter(Collection<String> metrics, Collection<String> devices) {
+        this.metrics = metrics == null ? Set.of() : metrics.stream()
+                .filter(metric -> !metric.isBlank())
+                .collect(Collectors.toSet());
+        this.devices = devices == null ? List.of() : devices.stream()
+                .filter(device -> !device.isBlank())
+                .map(ColumnFilter::glob)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The columns of the header line to parse: null when all are, {@link #NONE} when none is.
+     */
+    public boolean[] columns(String[] headers) {
+        if (metrics.isEmpty()) {
+            return null;
+        }
+        boolean[] columns = new boolean[headers.length];
+        boolean any = false;
+        for (int i = 1; i < headers.length; i++) {
+            columns[i] = metrics.contains(headers[i]);
+            any |= columns[i];
+        }
+        return any ? columns : NONE;
+    }
+
+    /**
+     * Whether the samples of the metric are included.
+     */
+    public boolean includesMetric(String metric) {
+        return metrics.isEmpty() || metrics.contains(metric);
+    }
+
+    /**
+     * Whether the rows of a device are included; rows without a key (e.g. avg-cpu) always are.
+     */
+    public boolean includes(String key) {
+        if (key == null || devices.isEmpty()) {
+            return true;
+        }
+        return included.computeIfAbsent(key, k -> devices.stream().anyMatch(device -> device.matcher(k).matches()));
+    }
+
+    static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnFilter{" +
+                "metrics=" + metrics +
+                ", devices=" + devices +
+                '}';
+    }
+}
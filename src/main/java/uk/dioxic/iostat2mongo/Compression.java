@@ -0,0 +1,102 @@
+package uk.dioxic.iostat2mongo;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression of an iostat capture, recognised from its first bytes rather than its name.
+ */
+public enum Compression {
+    NONE(new byte[0]),
+    GZIP(new byte[]{0x1f, (byte) 0x8b}),
+    ZSTD(new byte[]{0x28, (byte) 0xb5, 0x2f, (byte) 0xfd});
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int READ_AHEAD_CHUNK = 1024 * 1024;
+    private static final int READ_AHEAD_CHUNKS = 4;
+
+    private final byte[] magic;
+
+    Compression(byte[] magic) {
+        this.magic = magic;
+    }
+
+    public static Compression detect(Path file) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(4);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.read(head);
+        }
+        head.flip();
+        for (Compression compression : values()) {
+            if (compression != NONE && compression.matches(head)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * A reader of the text of the file, whatever its compression.
+     */
+    public static BufferedReader reader(Path file) throws IOException {
+        return detect(file).newReader(file);
+    }
+
+    /**
+     * A UTF-8 reader of the file, which is decompressed ahead of the reader on a thread of its own.
+     */
+    public BufferedReader newReader(Path file) throws IOException {
+        if (this == NONE) {
+            return Files.newBufferedReader(file);
+        }
+        InputStream raw = Files.newInputStream(file);
+        InputStream decompressed;
+        try {
+            decompressed = decompress(raw);
+        } catch (IOException | RuntimeException e) {
+            // a corrupt header fails in the decompressor's constructor
+            raw.close();
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(new ReadAheadInputStream(
+                decompressed, READ_AHEAD_CHUNK, READ_AHEAD_CHUNKS, "decompress-" + file.getFileName()),
+                StandardCharsets.UTF_8), READ_AHEAD_CHUNK);
+    }
+
+    /**
+     * Wraps the raw stream with a decompressing one.
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    private boolean matches(ByteBuffer head) {
+        if (head.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,19 +1,23 @@
 package uk.dioxic.iostat2mongo;
 
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.regex.Pattern;
+import java.time.format.DateTimeParseException;
 
+/**
+ * One-off timestamp checks in any {@link TimestampParser.Format}; parsers keep a {@link TimestampParser}
+ * per file instead, so the format is only detected once.
+ */
 public class DateUtil {
 
-    private static Pattern datePattern = Pattern.compile("\\d{1,2}/\\d{1,2}/\\d{1,2}\\s\\d{2}:\\d{2}:\\d{2}"); // 12/16/18 15:00:10
-    private static DateTimeFormatter df = DateTimeFormatter.ofPattern("MM/dd/yy HH:mm:ss");
-
     public static boolean isDate(String s) {
-        return datePattern.matcher(s).matches();
+        return new TimestampParser().parse(s) != null;
     }
 
     public static LocalDateTime parse(String date) {
-        return LocalDateTime.parse(date, df);
+        LocalDateTime ts = new TimestampParser().parse(date);
+        if (ts == null) {
+            throw new DateTimeParseException("Text '" + date + "' is not an iostat timestamp", date, 0);
+        }
+        return ts;
     }
 }
@@ -0,0 +1,59 @@
+package uk.dioxic.iostat2mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns dimension values (machine, type, metric and device names) to small int ids, and
+ * their combinations to dense series ids.
+ */
+public class Dimensions {
+
+    public static final int NONE = -1;
+    private static final int MAX_IDS = 0xFFFF;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<Long, Integer> series = new HashMap<>();
+
+    public int id(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer id = ids.get(name);
+        if (id == null) {
+            if (names.size() == MAX_IDS) {
+                throw new IllegalStateException("more than " + MAX_IDS + " distinct dimension values");
+            }
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    public String name(int id) {
+        return id == NONE ? null : names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * The series id of a (machine, type, key, metric) combination; ids are dense, from 0 in order of discovery.
+     */
+    public int series(int machine, int type, int key, int metric) {
+        long packed = (long) (machine & 0xFFFF) << 48
+                | (long) (type & 0xFFFF) << 32
+                | (long) (key & 0xFFFF) << 16
+                | (metric & 0xFFFF);
+        return series.computeIfAbsent(packed, k -> series.size());
+    }
+
+    public int seriesCount() {
+        return series.size();
+    }
+}
@@ -0,0 +1,209 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.InsertOneModel;
+import org.bson.RawBsonDocument;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends the documents of each rollup level to a file of its own. Documents are serialized into a
+ * large in-memory chunk (gzipped when asked), and chunks are written with an asynchronous
+ * {@link AsynchronousFileChannel}, so serializing the next chunk overlaps with writing the previous one. A call
+ * completes once the chunk holding its documents is written: a chunk is written when it is full, or as
+ * soon as the previous write of its file completes, so the documents of calls made meanwhile are written
+ * together. Gzipped chunks end with a sync flush, so every acknowledged document is in the file.
+ */
+public abstract class FileSink implements Sink {
+
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final List<Output> outputs = new ArrayList<>();
+
+    /**
+     * @param files    the file of each rollup level
+     * @param compress whether to gzip the files
+     */
+    protected FileSink(List<Path> files, boolean compress) throws IOException {
+        for (Path file : files) {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            outputs.add(new Output(file, compress));
+        }
+    }
+
+    /**
+     * Serializes one document to the stream.
+     */
+    protected abstract void append(RawBsonDocument document, OutputStream out) throws IOException;
+
+    @Override
+    public Mono<BulkWriteResult> insert(int level, List<InsertOneModel<RawBsonDocument>> models) {
+        return Mono.defer(() -> {
+            Output output = outputs.get(level);
+            CompletableFuture<Void> written;
+            try {
+                synchronized (output) {
+                    for (InsertOneModel<RawBsonDocument> model : models) {
+                        append(model.getDocument(), output.stream);
+                    }
+                    output.chunk.appended = true;
+                    written = output.chunk.written;
+                    if (output.chunk.size() >= CHUNK_SIZE || output.writing == 0) {
+                        output.writeChunk();
+                    }
+                }
+            } catch (IOException e) {
+                return Mono.error(e);
+            }
+            return Mono.fromFuture(written)
+                    .thenReturn(BulkWriteResult.acknowledged(models.size(), 0, 0, 0, Collections.emptyList()));
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Output output : outputs) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static class Output {
+        private final Path file;
+        private final AsynchronousFileChannel channel;
+        private final OutputStream stream;
+        private Chunk chunk = new Chunk();
+        private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+        private long position;
+        private int writing;
+        private boolean closed;
+
+        Output(Path file, boolean compress) throws IOException {
+            this.file = file;
+            this.channel = AsynchronousFileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            OutputStream current = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    chunk.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    chunk.write(b, off, len);
+                }
+            };
+            this.stream = compress ? new GZIPOutputStream(current, 64 * 1024, true) : current;
+        }
+
+        /**
+         * Hands the chunk to the channel and starts a new one; once written, the documents serialized
+         * meanwhile are written in turn.
+         */
+        synchronized void writeChunk() {
+            Chunk full = chunk;
+            if (!closed) {
+                try {
+                    // flushes what the deflater holds into the chunk
+                    stream.flush();
+                } catch (IOException e) {
+                    full.written.completeExceptionally(e);
+                }
+            }
+            ByteBuffer buffer = full.buffer();
+            chunk = new Chunk();
+            writing++;
+            long at = position;
+            position += buffer.remaining();
+            write(buffer, at, full.written);
+            pending = CompletableFuture.allOf(pending, full.written);
+            full.written.whenComplete((done, e) -> written());
+        }
+
+        private synchronized void written() {
+            writing--;
+            if (writing == 0 && !closed && chunk.appended) {
+                writeChunk();
+            }
+        }
+
+        private void write(ByteBuffer buffer, long at, CompletableFuture<Void> written) {
+            channel.write(buffer, at, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer count, Void attachment) {
+                    if (buffer.hasRemaining()) {
+                        write(buffer, at + count, written);
+                    } else {
+                        written.complete(null);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    written.completeExceptionally(new IOException("failed writing " + file, e));
+                }
+            });
+        }
+
+        void close() throws IOException {
+            CompletableFuture<Void> all;
+            synchronized (this) {
+                closed = true;
+                stream.close();
+                if (chunk.appended || chunk.size() > 0) {
+                    writeChunk();
+                }
+                all = pending;
+            }
+            try {
+                all.join();
+                channel.force(false);
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A chunk whose bytes are written without copying them; it is not written to once handed over.
+     * It starts small, since chunks written before they are full are the common case.
+     */
+    private static class Chunk extends ByteArrayOutputStream {
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+        boolean appended;
+
+        Chunk() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
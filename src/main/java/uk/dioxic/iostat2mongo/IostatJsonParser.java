@@ -0,0 +1,192 @@
+package uk.dioxic.iostat2mongo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the JSON output of {@code iostat -t -o JSON} with Jackson's streaming parser, one batch per
+ * element of a host's statistics, so the document is never held in memory. The samples have the same
+ * types and metric names as the text report: avg-cpu values are cpu samples named like its columns
+ * (%user...) and disk values are device samples keyed by the device. Like the iostat parser, zeros
+ * are kept.
+ */
+public class IostatJsonParser implements SampleParser {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final ParserOptions options;
+
+    public IostatJsonParser(ParserOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public Flux<SampleBatch> batchParse(Path file, long from) {
+        return SampleParser.generate(() -> JSON.createParser(Compression.reader(file)), Report::new);
+    }
+
+    @Override
+    public Flux<SampleBatch> batchFollow(Path file, Duration poll) {
+        return SampleParser.generate(
+                () -> JSON.createParser(new InputStreamReader(SampleParser.tail(file, poll), StandardCharsets.UTF_8)),
+                Report::new);
+    }
+
+    private class Report implements Cursor {
+        private final JsonParser json;
+        private final ColumnFilter filter = options.newFilter();
+        private final Dimensions dimensions = new Dimensions();
+        private final TimestampParser timestamps = new TimestampParser();
+        private final int cpu = dimensions.id("cpu");
+        private final int device = dimensions.id("device");
+        private final Map<String, Integer> cpuMetrics = new HashMap<>();
+        private final Map<String, Integer> deviceMetrics = new HashMap<>();
+        private int machine = Dimensions.NONE;
+        private String date;
+        private boolean statistics;
+        private int[] metrics = new int[32];
+        private double[] values = new double[32];
+
+        Report(JsonParser json) {
+            this.json = json;
+        }
+
+        @Override
+        public SampleBatch next() throws IOException {
+            JsonToken token;
+            while ((token = json.nextToken()) != null) {
+                if (statistics) {
+                    if (token == JsonToken.START_OBJECT) {
+                        return statistic();
+                    }
+                    statistics = false;
+                } else if (token == JsonToken.FIELD_NAME) {
+                    switch (json.getCurrentName()) {
+                        case "nodename":
+                            machine = dimensions.id(json.nextTextValue());
+                            break;
+                        case "date":
+                            date = json.nextTextValue();
+                            break;
+                        case "statistics":
+                            statistics = json.nextToken() == JsonToken.START_ARRAY;
+                            break;
+                        default:
+                    }
+                }
+            }
+            return null;
+        }
+
+        private SampleBatch statistic() throws IOException {
+            SampleBatch batch = null;
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if (field.equals("timestamp")) {
+                    batch = new SampleBatch(dimensions, machine, timestamp(json.getText()));
+                } else if (batch == null) {
+                    throw new IOException("iostat JSON statistics have no timestamp, capture them with iostat -t");
+                } else if (field.equals("avg-cpu") && value == JsonToken.START_OBJECT) {
+                    samples(batch, cpu, cpuMetrics);
+                } else if (field.equals("disk") && value == JsonToken.START_ARRAY) {
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        samples(batch, device, deviceMetrics);
+                    }
+                } else {
+                    json.skipChildren();
+                }
+            }
+            if (batch == null) {
+                throw new IOException("iostat JSON statistics have no timestamp, capture them with iostat -t");
+            }
+            return batch;
+        }
+
+        /**
+         * Adds the numeric fields of the current object, keyed by its device name when it has one.
+         */
+        private void samples(SampleBatch batch, int type, Map<String, Integer> names) throws IOException {
+            String key = null;
+            int count = 0;
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if (value == JsonToken.VALUE_STRING && (field.equals("disk_device") || field.equals("device"))) {
+                    key = json.getText();
+                } else if (value.isNumeric()) {
+                    int metric = names.computeIfAbsent(field, name -> metric(type, name));
+                    double sample = json.getDoubleValue();
+                    if (metric != Dimensions.NONE && sample >= 0) {
+                        if (count == metrics.length) {
+                            metrics = Arrays.copyOf(metrics, count * 2);
+                            values = Arrays.copyOf(values, count * 2);
+                        }
+                        metrics[count] = metric;
+                        values[count++] = sample;
+                    }
+                } else {
+                    json.skipChildren();
+                }
+            }
+            if (key != null && !filter.includes(key)) {
+                return;
+            }
+            int keyId = dimensions.id(key);
+            for (int i = 0; i < count; i++) {
+                batch.add(type, keyId, metrics[i], values[i]);
+            }
+        }
+
+        /**
+         * The id of the metric named as in the text report, or NONE when it is filtered out.
+         */
+        private int metric(int type, String field) {
+            String name = type == cpu ? "%" + field : field.equals("util") ? "%util" : field;
+            return filter.includesMetric(name) ? dimensions.id(name) : Dimensions.NONE;
+        }
+
+        private LocalDateTime timestamp(String text) throws IOException {
+            LocalDateTime ts = timestamps.parse(text);
+            if (ts == null && date != null) {
+                ts = timestamps.parse(date + " " + text);
+            }
+            if (ts == null) {
+                throw new IOException("unrecognised iostat JSON timestamp " + text);
+            }
+            return ts;
+        }
+    }
+
+    public static class Format implements SampleFormat {
+
+        @Override
+        public String name() {
+            return "iostat-json";
+        }
+
+        @Override
+        public boolean detects(List<String> head) {
+            String text = String.join("\n", head).trim();
+            return text.startsWith("{") && text.contains("\"sysstat\"");
+        }
+
+        @Override
+        public SampleParser newParser(ParserOptions options) {
+            return new IostatJsonParser(options);
+        }
+    }
+}
@@ -6,45 +6,106 @@ import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
 import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static uk.dioxic.iostat2mongo.DateUtil.isDate;
 
 @Builder
 @Slf4j
-public class IostatParser {
+public class IostatParser implements SampleParser {
     private static final Pattern machinePattern = Pattern.compile("\\((.+?)\\)");
     private static final Map<String, String> FIELD_MAPPING = Map.of("Device:", "device", "avg-cpu:", "cpu");
+    private static final long HEADER_LOOKBEHIND = 1024 * 1024;
 
     @Singular
     private List<String> filters;
 
     @Singular
-    private Map<String,Object> attributes;
+    private List<String> devices;
+
+    private boolean mapped;
+
+    @Builder.Default
+    private int parallelism = 1;
+
+    @Builder.Default
+    private long splitSize = 64 * 1024 * 1024;
 
     public static String getMachine(String line) {
         Matcher matcher = machinePattern.matcher(line);
         return matcher.find() ? matcher.group(1) : null;
     }
 
+    /**
+     * Parses the file with the configured strategy; compressed files are always streamed.
+     */
+    public Flux<State> parse(Path file) {
+        return Flux.defer(() -> {
+            Compression compression = compression(file);
+            if (compression != Compression.NONE) {
+                return compressedParse(file, compression);
+            }
+            if (parallelism > 1) {
+                return splitParse(file);
+            }
+            return mapped ? mappedParse(file) : generatorParse(file);
+        });
+    }
+
+    /**
+     * Parses the file into one {@link SampleBatch} per interval.
+     */
+    public Flux<SampleBatch> batchParse(Path file) {
+        return batch(parse(file));
+    }
+
+    /**
+     * Parses the file into batches, starting at {@code from}, which must be the offset of a timestamp line.
+     */
+    @Override
+    public Flux<SampleBatch> batchParse(Path file, long from) {
+        return batch(from > 0 && compression(file) == Compression.NONE ? resumeParse(file, from) : parse(file));
+    }
+
+    @Override
+    public Flux<SampleBatch> batchFollow(Path file, Duration poll) {
+        return batch(followParse(file, poll));
+    }
+
+    public Flux<SampleBatch> batch(Flux<State> states) {
+        return Flux.defer(() -> {
+            Batcher batcher = new Batcher();
+            return states
+                    .<SampleBatch>handle(batcher::add)
+                    .concatWith(Mono.fromSupplier(batcher::flush))
+                    .doOnNext(batch -> PipelineMetrics.get().samplesParsed(batch.size()));
+        });
+    }
+
     public Flux<State> generatorParse(Path file)  {
         final BufferedReader br;
         try {
             br = Files.newBufferedReader(file);
             return Flux.generate(
-                    State::new,
+                    this::newState,
                     (state, sink) -> getNext(state,sink,br)
             );
         } catch (IOException e) {
@@ -52,7 +113,54 @@ public class IostatParser {
         }
     }
 
+    /**
+     * Streams a compressed file, decompressing it on a thread of its own ahead of the parser. Batches
+     * have no file offset, so a compressed file is only checkpointed once it is fully loaded.
+     */
+    public Flux<State> compressedParse(Path file, Compression compression) {
+        return Flux.using(
+                () -> compression.newReader(file),
+                br -> Flux.generate(
+                        this::newState,
+                        (state, sink) -> getNext(state, sink, br)
+                ),
+                br -> {
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Parses a file that is still being written, or stdin when the path is "-".
+     * The flux only completes when stdin is closed.
+     */
+    public Flux<State> followParse(Path file, Duration poll) {
+        return Flux.using(
+                () -> SampleParser.tail(file, poll),
+                in -> {
+                    BufferedReader br = new BufferedReader(new InputStreamReader(in));
+                    return Flux.generate(
+                            this::newState,
+                            (state, sink) -> getNext(state, sink, br)
+                    );
+                },
+                in -> {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                }
+        );
+    }
+
     private State getNext(State state, SynchronousSink<State> sink, BufferedReader br) {
+        int lines = 0;
+        LocalDateTime ts;
         while (true) {
             try {
                 String line = br.readLine();
@@ -62,19 +170,29 @@ public class IostatParser {
                     br.close();
                     break;
                 }
+                lines++;
                 if (line.startsWith("Linux")) {
                     state.machine = getMachine(line);
                 }
-                else if (isDate(line)) {
-                    state.ts = DateUtil.parse(line);
+                else if ((ts = state.timestamps.parse(line)) != null) {
+                    state.ts = ts;
                 }
                 else if (!line.isBlank()) {
                     String[] tokens = line.split("\\s+");
                     if (tokens.length > 0 && tokens[0].endsWith(":")) {
                         state.headers = tokens;
                     } else {
+                        String key = tokens[0].isBlank() ? null : tokens[0];
+                        boolean[] columns = state.columns();
+                        if (columns == ColumnFilter.NONE || !state.filter.includes(key)) {
+                            continue;
+                        }
                         log.debug("stat emitted");
-                        state.values = tokens;
+                        state.key = key;
+                        state.values = new double[state.headers.length];
+                        for (int i = 1; i < Math.min(tokens.length, state.values.length); i++) {
+                            state.values[i] = columns == null || columns[i] ? Double.parseDouble(tokens[i]) : Double.NaN;
+                        }
                         if (sink != null)
                             sink.next(state.clone());
                         break;
@@ -85,6 +203,186 @@ public class IostatParser {
                 throw Exceptions.propagate(e);
             }
         }
+        PipelineMetrics.get().linesRead(lines);
+        return state;
+    }
+
+    public Flux<State> mappedParse(Path file) {
+        return Flux.using(
+                () -> IostatTokenizer.open(file),
+                tokenizer -> Flux.generate(
+                        this::newState,
+                        (state, sink) -> getNext(state, sink, tokenizer)
+                ),
+                IostatParser::close
+        );
+    }
+
+    /**
+     * Parses the file as byte ranges aligned to timestamp lines, each range on its own core.
+     * The ranges are emitted in file order so the timestamps stay ordered.
+     */
+    public Flux<State> splitParse(Path file) {
+        return Mono.fromCallable(() -> split(file))
+                .flatMapMany(Flux::fromIterable)
+                .flatMapSequential(range -> rangeParse(file, range).subscribeOn(Schedulers.parallel()), parallelism);
+    }
+
+    private Flux<State> resumeParse(Path file, long from) {
+        return Mono.fromCallable(() -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                return new Range(from, size, seed(channel, from, preamble(channel, size)));
+            }
+        }).flatMapMany(range -> rangeParse(file, range));
+    }
+
+    private Flux<State> rangeParse(Path file, Range range) {
+        return Flux.using(
+                () -> IostatTokenizer.open(file, range.start, range.end),
+                tokenizer -> Flux.generate(
+                        range.seed::clone,
+                        (state, sink) -> getNext(state, sink, tokenizer)
+                ),
+                IostatParser::close
+        );
+    }
+
+    List<Range> split(Path file) throws IOException {
+        List<Range> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int count = (int) Math.max(1, Math.min(parallelism, size / splitSize));
+            State preamble = preamble(channel, size);
+
+            long start = 0;
+            for (int i = 1; i < count; i++) {
+                long boundary = nextDate(channel, Math.max(start + 1, size * i / count), size);
+                if (boundary <= start || boundary >= size) {
+                    continue;
+                }
+                ranges.add(new Range(start, boundary, seed(channel, start, preamble)));
+                start = boundary;
+            }
+            ranges.add(new Range(start, size, seed(channel, start, preamble)));
+        }
+        log.debug("split {} into {} ranges", file.getFileName(), ranges.size());
+        return ranges;
+    }
+
+    /**
+     * Reads the machine and the first header line of the file.
+     */
+    private State preamble(FileChannel channel, long size) throws IOException {
+        State state = newState();
+        IostatTokenizer tokenizer = new IostatTokenizer(channel, 0, size);
+        while (tokenizer.nextLine() && state.headers == null) {
+            if (tokenizer.isMachine()) {
+                state.machine = tokenizer.machine();
+            }
+            else if (!tokenizer.isBlank() && !tokenizer.isDate() && tokenizer.isHeader()) {
+                state.headers = tokenizer.headers();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Finds the offset of the first timestamp line starting at or after {@code from}.
+     */
+    private long nextDate(FileChannel channel, long from, long size) throws IOException {
+        IostatTokenizer tokenizer = new IostatTokenizer(channel, from - 1, size);
+        tokenizer.nextLine(); // the line containing from-1 belongs to the previous range
+        while (tokenizer.nextLine()) {
+            if (tokenizer.isDate()) {
+                return tokenizer.lineOffset();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Builds the state a range starts with: the machine and the last header line before it.
+     */
+    private State seed(FileChannel channel, long start, State preamble) throws IOException {
+        State seed = preamble.clone();
+        if (start == 0) {
+            seed.headers = null;
+            return seed;
+        }
+        long from = Math.max(0, start - HEADER_LOOKBEHIND);
+        IostatTokenizer tokenizer = new IostatTokenizer(channel, from, start);
+        if (from > 0) {
+            tokenizer.nextLine();
+        }
+        while (tokenizer.nextLine()) {
+            if (!tokenizer.isBlank() && !tokenizer.isDate() && tokenizer.isHeader()) {
+                seed.headers = tokenizer.headers();
+            }
+        }
+        return seed;
+    }
+
+    private static Compression compression(Path file) {
+        try {
+            return Compression.detect(file);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private State newState() {
+        State state = new State();
+        state.filter = new ColumnFilter(filters, devices);
+        state.timestamps = new TimestampParser();
+        return state;
+    }
+
+    private static void close(IostatTokenizer tokenizer) {
+        try {
+            tokenizer.close();
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private State getNext(State state, SynchronousSink<State> sink, IostatTokenizer tokenizer) {
+        int lines = 0;
+        try {
+            while (tokenizer.nextLine()) {
+                lines++;
+                if (tokenizer.isMachine()) {
+                    state.machine = tokenizer.machine();
+                }
+                else if (tokenizer.isDate()) {
+                    state.ts = tokenizer.date();
+                    state.offset = tokenizer.lineOffset();
+                }
+                else if (!tokenizer.isBlank()) {
+                    if (tokenizer.isHeader()) {
+                        state.headers = tokenizer.headers();
+                    } else {
+                        String key = tokenizer.key();
+                        boolean[] columns = state.columns();
+                        if (columns == ColumnFilter.NONE || !state.filter.includes(key)) {
+                            continue;
+                        }
+                        state.key = key;
+                        state.values = new double[state.headers.length];
+                        tokenizer.values(state.values, columns);
+                        sink.next(state.clone());
+                        return state;
+                    }
+                }
+            }
+            sink.complete();
+        }
+        catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+        finally {
+            PipelineMetrics.get().linesRead(lines);
+        }
         return state;
     }
 
@@ -92,15 +390,144 @@ public class IostatParser {
     public String toString() {
         return "IostatParser{" +
                 "filter=" + filters +
-                ", additionalAttrs=" + attributes +
+                ", devices=" + devices +
+                ", mapped=" + mapped +
+                ", parallelism=" + parallelism +
                 '}';
     }
 
+    /**
+     * Collects the states of an interval into a batch, keeping zeros like {@link State#toDocumentList()}.
+     */
+    static class Batcher {
+        private final Dimensions dimensions = new Dimensions();
+        private final Map<List<String>, Header> headerCache = new HashMap<>();
+        private SampleBatch batch;
+        private int machine = Dimensions.NONE;
+        private String[] headers;
+        private Header header;
+
+        void add(State state, SynchronousSink<SampleBatch> sink) {
+            if (batch != null && !batch.getTs().equals(state.ts)) {
+                sink.next(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new SampleBatch(dimensions, dimensions.id(state.machine), state.ts, state.offset);
+                if (batch.machine() != machine) {
+                    machine = batch.machine();
+                    headerCache.clear();
+                    headers = null;
+                }
+            }
+            if (state.headers != headers) {
+                headers = state.headers;
+                header = headerCache.computeIfAbsent(Arrays.asList(headers), k -> new Header(headers));
+            }
+            int[] series = header.series(state.key);
+            int[] ids = header.ids;
+            int key = dimensions.id(state.key);
+            for (int i = 1; i < Math.min(ids.length, state.values.length); i++) {
+                if (state.values[i] >= 0) {
+                    batch.add(series[i], ids[0], key, ids[i], state.values[i]);
+                }
+            }
+        }
+
+        SampleBatch flush() {
+            SampleBatch last = batch;
+            batch = null;
+            return last;
+        }
+
+        /**
+         * The dimension ids of a header line, and the series ids of each row key seen under it.
+         */
+        private class Header {
+            final int[] ids;
+            final Map<String, int[]> rows = new HashMap<>();
+
+            Header(String[] headers) {
+                ids = new int[headers.length];
+                ids[0] = dimensions.id(FIELD_MAPPING.getOrDefault(headers[0], headers[0]));
+                for (int i = 1; i < headers.length; i++) {
+                    ids[i] = dimensions.id(headers[i]);
+                }
+            }
+
+            int[] series(String key) {
+                return rows.computeIfAbsent(key, k -> {
+                    int keyId = dimensions.id(k);
+                    int[] series = new int[ids.length];
+                    for (int i = 1; i < ids.length; i++) {
+                        series[i] = dimensions.series(machine, ids[0], keyId, ids[i]);
+                    }
+                    return series;
+                });
+            }
+        }
+    }
+
+    /**
+     * The text report of iostat, which files no other format detects are parsed as.
+     */
+    public static class Format implements SampleFormat {
+
+        @Override
+        public String name() {
+            return "iostat";
+        }
+
+        @Override
+        public boolean detects(List<String> head) {
+            return head.stream().anyMatch(line -> line.startsWith("avg-cpu:") || line.startsWith("Device"));
+        }
+
+        @Override
+        public SampleParser newParser(ParserOptions options) {
+            return IostatParser.builder()
+                    .filters(options.getFilters())
+                    .devices(options.getDevices())
+                    .mapped(options.isMapped())
+                    .parallelism(options.getParallelism())
+                    .build();
+        }
+    }
+
+    static class Range {
+        final long start;
+        final long end;
+        final State seed;
+
+        Range(long start, long end, State seed) {
+            this.start = start;
+            this.end = end;
+            this.seed = seed;
+        }
+    }
+
+    /**
+     * A values line; columns excluded by the filter hold NaN.
+     */
     public static class State implements Cloneable {
         String[] headers;
-        String[] values;
+        String key;
+        double[] values;
         String machine;
         LocalDateTime ts;
+        long offset = -1;
+        ColumnFilter filter;
+        TimestampParser timestamps;
+        private String[] columnsFor;
+        private boolean[] columns;
+
+        boolean[] columns() {
+            if (columnsFor != headers) {
+                columns = filter.columns(headers);
+                columnsFor = headers;
+            }
+            return columns;
+        }
 
         public Document toDocument() {
             Document document = new Document();
@@ -113,22 +540,27 @@ public class IostatParser {
                     .append("type", type);
 
             for (int i=1; i< Math.min(headers.length, values.length); i++) {
-                document.append(headers[i], Double.valueOf(values[i]));
+                if (!Double.isNaN(values[i]))
+                    document.append(headers[i], values[i]);
             }
 
-            if (values[0] != null && !values[0].isBlank()) {
-                document.append(type, values[0]);
+            if (key != null) {
+                document.append(type, key);
             }
 
             return document;
         }
 
+        /**
+         * A document per metric. Zeros are kept so bucket counts and averages include idle intervals;
+         * filtered out (NaN) columns are not.
+         */
         public Flux<Document> toDocumentList() {
             List<Document> docs = new ArrayList<>();
 
             for (int i=1; i< Math.min(headers.length, values.length); i++) {
-                Double value = Double.valueOf(values[i]);
-                if (value > 0) {
+                double value = values[i];
+                if (value >= 0) {
                     Document document = new Document();
                     String type = headers[0];
 
@@ -141,8 +573,8 @@ public class IostatParser {
                     document.append("metric", headers[i]);
                     document.append("value", value);
 
-                    if (values[0] != null && !values[0].isBlank()) {
-                        document.append(type, values[0]);
+                    if (key != null) {
+                        document.append(type, key);
                     }
                     docs.add(document);
                 }
@@ -154,9 +586,15 @@ public class IostatParser {
         public State clone() {
             State clone = new State();
             clone.headers = headers;
+            clone.key = key;
             clone.values = values;
             clone.machine = machine;
             clone.ts = ts;
+            clone.offset = offset;
+            clone.filter = filter;
+            clone.timestamps = timestamps;
+            clone.columnsFor = columnsFor;
+            clone.columns = columns;
 
             return clone;
         }
@@ -165,6 +603,7 @@ public class IostatParser {
         public String toString() {
             return "State{" +
                     "headers=" + Arrays.toString(headers) +
+                    ", key='" + key + '\'' +
                     ", values=" + Arrays.toString(values) +
                     ", machine='" + machine + '\'' +
                     ", ts=" + ts +
@@ -0,0 +1,369 @@
+package uk.dioxic.iostat2mongo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Scans a memory-mapped iostat file line by line without creating a String per line.
+ */
+public class IostatTokenizer implements Closeable {
+
+    private static final long REGION_SIZE = 64 * 1024 * 1024;
+    private static final byte[] LINUX = "Linux".getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final FileChannel channel;
+    private final long end;
+    private final NameCache names = new NameCache();
+    private final HeaderCache headers = new HeaderCache();
+
+    private MappedByteBuffer region;
+    private long regionStart;
+    private int pos;
+    private int lineStart;
+    private int lineEnd;
+
+    private final TimestampParser timestamps = new TimestampParser();
+    private LocalDateTime ts;
+    private long tsOffset = -1;
+
+    public IostatTokenizer(FileChannel channel, long start, long end) throws IOException {
+        this.channel = channel;
+        this.end = end;
+        map(start);
+    }
+
+    public static IostatTokenizer open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return new IostatTokenizer(channel, 0, channel.size());
+    }
+
+    public static IostatTokenizer open(Path file, long start, long end) throws IOException {
+        return new IostatTokenizer(FileChannel.open(file, StandardOpenOption.READ), start, end);
+    }
+
+    /**
+     * Advances to the next line, remapping the file region when a line crosses its end.
+     */
+    public boolean nextLine() throws IOException {
+        while (true) {
+            int limit = region.limit();
+            int i = pos;
+            while (i < limit && region.get(i) != '\n') {
+                i++;
+            }
+            if (i < limit) {
+                setLine(pos, i);
+                pos = i + 1;
+                return true;
+            }
+            if (regionStart + limit >= end) {
+                if (pos < limit) {
+                    setLine(pos, limit);
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+            if (pos == 0) {
+                throw new IOException("line at offset " + regionStart + " exceeds " + REGION_SIZE + " bytes");
+            }
+            map(regionStart + pos);
+        }
+    }
+
+    /**
+     * The absolute file offset of the start of the current line.
+     */
+    public long lineOffset() {
+        return regionStart + lineStart;
+    }
+
+    public boolean isBlank() {
+        return skipWhitespace(lineStart) == lineEnd;
+    }
+
+    public boolean isMachine() {
+        if (lineEnd - lineStart < LINUX.length) {
+            return false;
+        }
+        for (int i = 0; i < LINUX.length; i++) {
+            if (region.get(lineStart + i) != LINUX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the current line is a timestamp, in the format of the first timestamp of the file.
+     */
+    public boolean isDate() {
+        return date() != null;
+    }
+
+    public boolean isHeader() {
+        int end = tokenEnd(lineStart);
+        return end > lineStart && region.get(end - 1) == ':';
+    }
+
+    public String machine() {
+        return IostatParser.getMachine(string(lineStart, lineEnd));
+    }
+
+    /**
+     * The timestamp on the current line, or null when it is not a timestamp line.
+     */
+    public LocalDateTime date() {
+        if (tsOffset != lineOffset()) {
+            ts = timestamps.parse(region, lineStart, lineEnd);
+            tsOffset = lineOffset();
+        }
+        return ts;
+    }
+
+    /**
+     * Column headers of the current line, shared between identical header lines.
+     */
+    public String[] headers() {
+        return headers.get(this);
+    }
+
+    /**
+     * Name of the first column of a values line, or null when it is blank.
+     */
+    public String key() {
+        if (isWhitespace(region.get(lineStart))) {
+            return null;
+        }
+        return names.get(region, lineStart, tokenEnd(lineStart));
+    }
+
+    /**
+     * Parses the numeric columns of the current line into {@code values}, starting at index 1.
+     *
+     * @return the number of columns read, including the key column
+     */
+    public int values(double[] values) {
+        return values(values, null);
+    }
+
+    /**
+     * Like {@link #values(double[])}, but only parses the columns set in {@code columns} (all when null);
+     * the others are skipped and set to NaN.
+     */
+    public int values(double[] values, boolean[] columns) {
+        int i = tokenEnd(lineStart);
+        int column = 1;
+        while (column < values.length) {
+            int start = skipWhitespace(i);
+            if (start == lineEnd) {
+                break;
+            }
+            i = tokenEnd(start);
+            values[column] = columns == null || columns[column] ? parseDouble(start, i) : Double.NaN;
+            column++;
+        }
+        return column;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void map(long from) throws IOException {
+        long size = Math.min(REGION_SIZE, end - from);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, from, size);
+        regionStart = from;
+        pos = 0;
+    }
+
+    private void setLine(int start, int end) {
+        lineStart = start;
+        lineEnd = end > start && region.get(end - 1) == '\r' ? end - 1 : end;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < lineEnd && isWhitespace(region.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private int tokenEnd(int i) {
+        while (i < lineEnd && !isWhitespace(region.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private boolean sameBytes(byte[] bytes, int from, int length) {
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (region.get(from + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copy(int from, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = region.get(from + i);
+        }
+    }
+
+    private String string(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        copy(from, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    double parseDouble(int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (region.get(i) == '-' || region.get(i) == '+')) {
+            negative = region.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        boolean fraction = false;
+        boolean digits = false;
+        for (; i < to; i++) {
+            byte b = region.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits = true;
+                if (fraction) {
+                    scale++;
+                }
+                if (mantissa >= MAX_EXACT_MANTISSA) {
+                    return Double.parseDouble(string(from, to));
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return Double.parseDouble(string(from, to).replace(',', '.'));
+            }
+        }
+        if (!digits || scale >= POW10.length) {
+            return Double.parseDouble(string(from, to));
+        }
+        double value = mantissa / POW10[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Interns device names so repeated lines resolve to the same String instance.
+     */
+    private static class NameCache {
+        private byte[][] keys = new byte[64][];
+        private String[] values = new String[64];
+        private int size;
+
+        String get(MappedByteBuffer buffer, int from, int to) {
+            int mask = keys.length - 1;
+            int slot = hash(buffer, from, to) & mask;
+            while (keys[slot] != null) {
+                if (equals(keys[slot], buffer, from, to)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            byte[] key = new byte[to - from];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = buffer.get(from + i);
+            }
+            String value = new String(key, StandardCharsets.US_ASCII);
+            keys[slot] = key;
+            values[slot] = value;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return value;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = Arrays.hashCode(oldKeys[i]) & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int hash(MappedByteBuffer buffer, int from, int to) {
+            int h = 1;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + buffer.get(i);
+            }
+            return h;
+        }
+
+        private static boolean equals(byte[] key, MappedByteBuffer buffer, int from, int to) {
+            if (key.length != to - from) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer.get(from + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remembers the raw bytes of header lines already seen so they are only split once.
+     */
+    private static class HeaderCache {
+        private byte[][] lines = new byte[0][];
+        private String[][] headers = new String[0][];
+
+        String[] get(IostatTokenizer tokenizer) {
+            int length = tokenizer.lineEnd - tokenizer.lineStart;
+            for (int i = 0; i < lines.length; i++) {
+                if (tokenizer.sameBytes(lines[i], tokenizer.lineStart, length)) {
+                    return headers[i];
+                }
+            }
+            byte[] line = new byte[length];
+            tokenizer.copy(tokenizer.lineStart, line);
+            String[] parsed = new String(line, StandardCharsets.US_ASCII).trim().split("\\s+");
+
+            lines = Arrays.copyOf(lines, lines.length + 1);
+            headers = Arrays.copyOf(headers, headers.length + 1);
+            lines[lines.length - 1] = line;
+            headers[headers.length - 1] = parsed;
+            return parsed;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes one relaxed extended JSON document per line, as read by {@code mongoimport}.
+ */
+public class JsonFileSink extends FileSink {
+
+    private static final JsonWriterSettings SETTINGS = JsonWriterSettings.builder()
+            .outputMode(JsonMode.RELAXED)
+            .build();
+    private static final byte[] NEWLINE = {'\n'};
+
+    public JsonFileSink(List<Path> files, boolean compress) throws IOException {
+        super(files, compress);
+    }
+
+    @Override
+    protected void append(RawBsonDocument document, OutputStream out) throws IOException {
+        out.write(document.toJson(SETTINGS).getBytes(StandardCharsets.UTF_8));
+        out.write(NEWLINE);
+    }
+}
@@ -0,0 +1,86 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.RawBsonDocument;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Inserts each rollup level into its collection with one unordered bulkWrite per call.
+ * When idempotent (the buckets have deterministic ids) a bulkWrite whose only errors are duplicate
+ * keys is a replay of documents already written and succeeds, so transient errors can be retried
+ * by writing the whole batch again.
+ */
+public class MongoSink implements Sink {
+
+    private static final int RETRIES = 5;
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(100);
+
+    private final List<MongoCollection<RawBsonDocument>> collections;
+    private final boolean idempotent;
+    private final BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+
+    public MongoSink(List<MongoCollection<RawBsonDocument>> collections) {
+        this(collections, false);
+    }
+
+    public MongoSink(List<MongoCollection<RawBsonDocument>> collections, boolean idempotent) {
+        this.collections = collections;
+        this.idempotent = idempotent;
+    }
+
+    @Override
+    public Mono<BulkWriteResult> insert(int level, List<InsertOneModel<RawBsonDocument>> models) {
+        Mono<BulkWriteResult> write = Mono.defer(() -> Mono.from(collections.get(level).bulkWrite(models, options)));
+        if (!idempotent) {
+            return write;
+        }
+        return write
+                .onErrorResume(MongoBulkWriteException.class, MongoSink::alreadyWritten)
+                .retryWhen(errors -> errors
+                        .zipWith(Flux.range(1, Integer.MAX_VALUE))
+                        .concatMap(error -> {
+                            if (!isTransient(error.getT1()) || error.getT2() > RETRIES) {
+                                return Mono.error(error.getT1());
+                            }
+                            PipelineMetrics.get().retries();
+                            return Mono.delay(FIRST_BACKOFF.multipliedBy(1L << (error.getT2() - 1)));
+                        }));
+    }
+
+    /**
+     * The result of the documents that were inserted, when every failure is a duplicate key.
+     */
+    static Mono<BulkWriteResult> alreadyWritten(MongoBulkWriteException e) {
+        if (e.getWriteConcernError() != null) {
+            return Mono.error(e);
+        }
+        for (BulkWriteError error : e.getWriteErrors()) {
+            if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                return Mono.error(e);
+            }
+        }
+        PipelineMetrics.get().duplicates(e.getWriteErrors().size());
+        return Mono.just(e.getWriteResult());
+    }
+
+    static boolean isTransient(Throwable error) {
+        return error instanceof MongoSocketException
+                || error instanceof MongoTimeoutException
+                || error instanceof MongoNotPrimaryException
+                || error instanceof MongoNodeIsRecoveringException;
+    }
+}
@@ -0,0 +1,31 @@
+package uk.dioxic.iostat2mongo;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+
+import java.util.List;
+
+/**
+ * The settings every {@link SampleFormat} creates its parsers with; parsing strategies that do not
+ * apply to a format are ignored.
+ */
+@Builder
+@Getter
+public class ParserOptions {
+
+    @Singular
+    private List<String> filters;
+
+    @Singular
+    private List<String> devices;
+
+    private boolean mapped;
+
+    @Builder.Default
+    private int parallelism = 1;
+
+    public ColumnFilter newFilter() {
+        return new ColumnFilter(filters, devices);
+    }
+}
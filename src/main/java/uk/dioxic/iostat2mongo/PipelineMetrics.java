@@ -0,0 +1,287 @@
+package uk.dioxic.iostat2mongo;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters for each stage, from lines read to documents written. Stages add to them in
+ * bulk (per state, batch or window) rather than per value.
+ */
+@Slf4j
+public class PipelineMetrics implements PipelineMetricsMXBean {
+
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+    private static final String OBJECT_NAME = "uk.dioxic.iostat2mongo:type=PipelineMetrics";
+
+    private final LongAdder linesRead = new LongAdder();
+    private final LongAdder samplesParsed = new LongAdder();
+    private final LongAdder openBuckets = new LongAdder();
+    private final LongAdder bucketsEmitted = new LongAdder();
+    private final LongAdder lateSamples = new LongAdder();
+    private final LongAdder upsertsCoalesced = new LongAdder();
+    private final LongAdder documentsProduced = new LongAdder();
+    private final LongAdder documentsWritten = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder journalBytes = new LongAdder();
+    private final LongAdder journalFull = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder stallNanos = new LongAdder();
+    private final Histogram writeMicros = new Histogram();
+    private final Histogram batchSizes = new Histogram();
+
+    private long lastLines;
+    private long lastDocuments;
+    private long lastNanos = System.nanoTime();
+
+    public static PipelineMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, once.
+     */
+    public synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            log.warn("could not register {}", OBJECT_NAME, e);
+        }
+    }
+
+    public void linesRead(long lines) {
+        linesRead.add(lines);
+    }
+
+    public void samplesParsed(long samples) {
+        samplesParsed.add(samples);
+    }
+
+    public void bucketOpened() {
+        openBuckets.increment();
+    }
+
+    public void bucketsEmitted(long buckets) {
+        openBuckets.add(-buckets);
+        bucketsEmitted.add(buckets);
+    }
+
+    /**
+     * Samples dropped because the window of their bucket had already closed.
+     */
+    public void lateSamples(long samples) {
+        lateSamples.add(samples);
+    }
+
+    /**
+     * Upserts saved by merging them into another pending upsert of the same bucket.
+     */
+    public void upsertsCoalesced(long upserts) {
+        upsertsCoalesced.add(upserts);
+    }
+
+    public void documentsWritten(long documents) {
+        documentsWritten.add(documents);
+    }
+
+    /**
+     * Documents not inserted because a document with their id was already written.
+     */
+    public void duplicates(long documents) {
+        duplicates.add(documents);
+    }
+
+    /**
+     * Bytes appended to the spill journal.
+     */
+    public void journaled(long bytes) {
+        journalBytes.add(bytes);
+    }
+
+    /**
+     * Bytes of the spill journal written to the sink and freed.
+     */
+    public void journalDrained(long bytes) {
+        journalBytes.add(-bytes);
+    }
+
+    /**
+     * An append that had to wait for the spill journal to drain.
+     */
+    public void journalFull() {
+        journalFull.increment();
+    }
+
+    public void write(long nanos, boolean error) {
+        writeMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (error) {
+            writeErrors.increment();
+        }
+    }
+
+    /**
+     * A write retried after a transient error.
+     */
+    public void retries() {
+        retries.increment();
+    }
+
+    public void batch(int documents) {
+        batchSizes.record(documents);
+        documentsProduced.add(documents);
+    }
+
+    /**
+     * A write that waited {@code nanos} for the controller to let it through.
+     */
+    public void stall(long nanos) {
+        stalls.increment();
+        stallNanos.add(nanos);
+    }
+
+    @Override
+    public long getLinesRead() {
+        return linesRead.sum();
+    }
+
+    @Override
+    public long getSamplesParsed() {
+        return samplesParsed.sum();
+    }
+
+    @Override
+    public long getOpenBuckets() {
+        return openBuckets.sum();
+    }
+
+    @Override
+    public long getBucketsEmitted() {
+        return bucketsEmitted.sum();
+    }
+
+    @Override
+    public long getLateSamples() {
+        return lateSamples.sum();
+    }
+
+    @Override
+    public long getUpsertsCoalesced() {
+        return upsertsCoalesced.sum();
+    }
+
+    @Override
+    public long getDocumentsProduced() {
+        return documentsProduced.sum();
+    }
+
+    @Override
+    public long getDocumentsWritten() {
+        return documentsWritten.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getJournalBytes() {
+        return journalBytes.sum();
+    }
+
+    @Override
+    public long getJournalFull() {
+        return journalFull.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writeMicros.getCount();
+    }
+
+    @Override
+    public long getWriteErrors() {
+        return writeErrors.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public double getWriteLatencyMeanMillis() {
+        return writeMicros.getMean() / 1000;
+    }
+
+    @Override
+    public double getWriteLatencyP99Millis() {
+        return writeMicros.percentile(99) / 1000d;
+    }
+
+    @Override
+    public double getWriteLatencyMaxMillis() {
+        return writeMicros.getMax() / 1000d;
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSizes.getMax();
+    }
+
+    @Override
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    @Override
+    public double getStallMillis() {
+        return stallNanos.sum() / 1e6;
+    }
+
+    /**
+     * One compact line with the totals, and the line and document rates since the previous call.
+     */
+    public synchronized String summary() {
+        long now = System.nanoTime();
+        long lines = getLinesRead();
+        long documents = getDocumentsWritten();
+        double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+
+        String summary = String.format("lines=%d (%.0f/s) samples=%d buckets=%d open/%d emitted late=%d coalesced=%d docs=%d produced/%d written (%.0f/s) duplicates=%d journal=%dKB/%d full "
+                        + "writes=%d errors=%d retries=%d latency=%.1f/%.1f/%.1fms (mean/p99/max) batch=%.0f/%d (mean/max) stalls=%d (%.0fms)",
+                lines, (lines - lastLines) / seconds,
+                getSamplesParsed(),
+                getOpenBuckets(), getBucketsEmitted(),
+                getLateSamples(),
+                getUpsertsCoalesced(),
+                getDocumentsProduced(), documents, (documents - lastDocuments) / seconds,
+                getDuplicates(),
+                getJournalBytes() / 1024, getJournalFull(),
+                getWrites(), getWriteErrors(), getRetries(),
+                getWriteLatencyMeanMillis(), getWriteLatencyP99Millis(), getWriteLatencyMaxMillis(),
+                getBatchSizeMean(), getBatchSizeMax(),
+                getStalls(), getStallMillis());
+
+        lastNanos = now;
+        lastLines = lines;
+        lastDocuments = documents;
+        return summary;
+    }
+}
@@ -0,0 +1,49 @@
+package uk.dioxic.iostat2mongo;
+
+/**
+ * Counters and latencies of each pipeline stage, published over JMX.
+ */
+public interface PipelineMetricsMXBean {
+
+    long getLinesRead();
+
+    long getSamplesParsed();
+
+    long getOpenBuckets();
+
+    long getBucketsEmitted();
+
+    long getLateSamples();
+
+    long getUpsertsCoalesced();
+
+    long getDocumentsProduced();
+
+    long getDocumentsWritten();
+
+    long getDuplicates();
+
+    long getJournalBytes();
+
+    long getJournalFull();
+
+    long getWrites();
+
+    long getWriteErrors();
+
+    long getRetries();
+
+    double getWriteLatencyMeanMillis();
+
+    double getWriteLatencyP99Millis();
+
+    double getWriteLatencyMaxMillis();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeMax();
+
+    long getStalls();
+
+    double getStallMillis();
+}
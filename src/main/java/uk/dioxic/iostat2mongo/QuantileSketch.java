@@ -0,0 +1,235 @@
+package uk.dioxic.iostat2mongo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with relative accuracy (DDSketch): a positive value v is counted in bin
+ * ceil(log(v) / log(gamma)), gamma = (1 + a) / (1 - a), so every quantile is within a fraction a of a
+ * value of that rank. Sketches of the same accuracy merge exactly by adding their bin counts, which
+ * is how rollups get their percentiles without the raw samples. Zero and negative values are counted
+ * together below every bin. The bins are a dense array from the lowest one seen; past
+ * {@link #MAX_BINS} the lowest bins are folded together, which only loses accuracy at the bottom.
+ */
+public class QuantileSketch {
+
+    static final int MAX_BINS = 2048;
+    private static final int INITIAL_BINS = 32;
+
+    private final double accuracy;
+    private final double logGamma;
+    private long[] counts = new long[0];
+    private int offset;
+    private int lowest;
+    private int highest = -1;
+    private long zeros;
+    private long count;
+
+    public QuantileSketch(double accuracy) {
+        if (!(accuracy > 0 && accuracy < 1)) {
+            throw new IllegalArgumentException("sketch accuracy must be between 0 and 1, got " + accuracy);
+        }
+        this.accuracy = accuracy;
+        this.logGamma = Math.log((1 + accuracy) / (1 - accuracy));
+    }
+
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, long n) {
+        if (Double.isNaN(value) || n <= 0) {
+            return;
+        }
+        if (value <= Double.MIN_NORMAL) {
+            zeros += n;
+        } else {
+            int slot = slot((int) Math.ceil(Math.log(value) / logGamma));
+            counts[slot] += n;
+        }
+        count += n;
+    }
+
+    /**
+     * Adds the counts of a sketch of the same accuracy.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.accuracy != accuracy) {
+            throw new IllegalArgumentException("cannot merge a sketch of accuracy " + other.accuracy + " into one of " + accuracy);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        for (int index = other.lowest; index <= other.highest; index++) {
+            long n = other.counts[index - other.offset];
+            if (n > 0) {
+                int slot = slot(index);
+                counts[slot] += n;
+            }
+        }
+        zeros += other.zeros;
+        count += other.count;
+    }
+
+    /**
+     * The value of rank {@code q * (count - 1)}, or NaN when the sketch is empty.
+     */
+    public double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (Math.max(0, Math.min(1, q)) * (count - 1));
+        long seen = zeros;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int index = lowest; index <= highest; index++) {
+            seen += counts[index - offset];
+            if (seen > rank) {
+                return value(index);
+            }
+        }
+        return value(highest);
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        highest = lowest - 1;
+        zeros = 0;
+        count = 0;
+    }
+
+    /**
+     * The bytes of the sketch: the accuracy as a double, then as varints the count of zeros, the lowest
+     * bin (zigzag), the number of bins from it and the count of each bin.
+     */
+    public byte[] encode() {
+        int bins = highest - lowest + 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + bins * 2);
+        out.writeBytes(ByteBuffer.allocate(8).putDouble(accuracy).array());
+        writeVarint(out, zeros);
+        writeVarint(out, (lowest << 1) ^ (lowest >> 31));
+        writeVarint(out, Math.max(0, bins));
+        for (int index = lowest; index <= highest; index++) {
+            writeVarint(out, counts[index - offset]);
+        }
+        return out.toByteArray();
+    }
+
+    public static QuantileSketch decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        QuantileSketch sketch = new QuantileSketch(in.getDouble());
+        sketch.zeros = readVarint(in);
+        sketch.count = sketch.zeros;
+        int zigzag = (int) readVarint(in);
+        int lowest = (zigzag >>> 1) ^ -(zigzag & 1);
+        int bins = (int) readVarint(in);
+        for (int i = 0; i < bins; i++) {
+            long n = readVarint(in);
+            if (n > 0) {
+                int slot = sketch.slot(lowest + i);
+                sketch.counts[slot] += n;
+                sketch.count += n;
+            }
+        }
+        return sketch;
+    }
+
+    /**
+     * The value a bin stands for: the midpoint of its bounds, within the accuracy of both.
+     */
+    private double value(int index) {
+        return 2 * Math.exp(index * logGamma) / (1 + Math.exp(logGamma));
+    }
+
+    /**
+     * The position of a bin in the counts, growing them (or folding the lowest bins) to fit it.
+     */
+    private int slot(int index) {
+        if (highest < lowest) {
+            if (counts.length == 0) {
+                counts = new long[INITIAL_BINS];
+            }
+            offset = index - counts.length / 2;
+            lowest = highest = index;
+            return index - offset;
+        }
+        if (index < lowest) {
+            if (highest - index >= MAX_BINS) {
+                index = highest - MAX_BINS + 1;
+                if (index >= lowest) {
+                    return index - offset;
+                }
+            }
+            if (index < offset) {
+                grow(index, highest);
+            }
+            lowest = index;
+        } else if (index > highest) {
+            if (index - lowest >= MAX_BINS) {
+                fold(index - MAX_BINS + 1);
+            }
+            if (index >= offset + counts.length) {
+                grow(lowest, index);
+            }
+            highest = index;
+        }
+        return index - offset;
+    }
+
+    private void grow(int from, int to) {
+        int length = Math.max(to - from + 1, counts.length * 2);
+        long[] grown = new long[length];
+        int newOffset = from - (length - (to - from + 1)) / 2;
+        System.arraycopy(counts, lowest - offset, grown, lowest - newOffset, highest - lowest + 1);
+        counts = grown;
+        offset = newOffset;
+    }
+
+    /**
+     * Moves the counts of the bins below {@code index} into it.
+     */
+    private void fold(int index) {
+        long folded = 0;
+        for (int i = lowest; i < Math.min(index, highest + 1); i++) {
+            folded += counts[i - offset];
+            counts[i - offset] = 0;
+        }
+        if (index > highest) {
+            // every bin was folded, so the empty counts can be recentred on the new one
+            offset = index - counts.length / 2;
+            highest = index;
+        }
+        counts[index - offset] += folded;
+        lowest = index;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed sketch varint");
+    }
+}
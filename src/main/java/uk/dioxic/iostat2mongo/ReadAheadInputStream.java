@@ -0,0 +1,123 @@
+package uk.dioxic.iostat2mongo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the source stream ahead on a thread of its own, a few chunks at most, so that reading and
+ * decompressing the source overlaps with whatever consumes this stream. Whatever the source throws is
+ * rethrown by the next read.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<Object> chunks;
+    private final Thread reader;
+    private byte[] chunk = new byte[0];
+    private int pos;
+    private boolean done;
+
+    /**
+     * @param chunkSize the bytes read ahead at a time
+     * @param chunks    the most chunks read ahead
+     */
+    public ReadAheadInputStream(InputStream source, int chunkSize, int chunks, String name) {
+        this.chunks = new ArrayBlockingQueue<>(chunks);
+        this.reader = new Thread(() -> pump(source, chunkSize), name);
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - pos;
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        reader.interrupt();
+    }
+
+    private boolean fill() throws IOException {
+        while (pos == chunk.length) {
+            if (done) {
+                return false;
+            }
+            Object next;
+            try {
+                next = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for " + reader.getName());
+            }
+            if (next instanceof Error) {
+                done = true;
+                throw (Error) next;
+            }
+            if (next instanceof Throwable) {
+                done = true;
+                throw new IOException("failed reading " + reader.getName(), (Throwable) next);
+            }
+            if (next == END) {
+                done = true;
+                return false;
+            }
+            chunk = (byte[]) next;
+            pos = 0;
+        }
+        return true;
+    }
+
+    private void pump(InputStream source, int chunkSize) {
+        try (source) {
+            while (true) {
+                byte[] buffer = new byte[chunkSize];
+                int count = source.readNBytes(buffer, 0, chunkSize);
+                if (count > 0) {
+                    chunks.put(count == chunkSize ? buffer : Arrays.copyOf(buffer, count));
+                }
+                if (count < chunkSize) {
+                    break;
+                }
+            }
+            chunks.put(END);
+        } catch (InterruptedException e) {
+            // closed by the consumer
+        } catch (Throwable e) {
+            // anything the source throws, decompressor bugs included, must reach the consumer or it waits forever
+            try {
+                chunks.put(e);
+            } catch (InterruptedException interrupted) {
+                // closed by the consumer
+            }
+        }
+    }
+}
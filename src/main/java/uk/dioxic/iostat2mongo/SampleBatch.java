@@ -0,0 +1,122 @@
+package uk.dioxic.iostat2mongo;
+
+import lombok.Getter;
+import org.bson.Document;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * The samples of one iostat interval, held as columns of dimension ids and primitive values.
+ */
+public class SampleBatch {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    @Getter private final Dimensions dimensions;
+    @Getter private final LocalDateTime ts;
+    @Getter private final long offset;
+    private final int machine;
+    private int size;
+    private int[] series = new int[INITIAL_CAPACITY];
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private int[] metrics = new int[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+
+    public SampleBatch(Dimensions dimensions, int machine, LocalDateTime ts) {
+        this(dimensions, machine, ts, -1);
+    }
+
+    /**
+     * @param offset file offset of the interval's timestamp line, or -1 when it is not known
+     */
+    public SampleBatch(Dimensions dimensions, int machine, LocalDateTime ts, long offset) {
+        this.dimensions = dimensions;
+        this.machine = machine;
+        this.ts = ts;
+        this.offset = offset;
+    }
+
+    public void add(int type, int key, int metric, double value) {
+        add(dimensions.series(machine, type, key, metric), type, key, metric, value);
+    }
+
+    /**
+     * Adds a sample whose series id the caller already resolved through {@link Dimensions#series}.
+     */
+    public void add(int series, int type, int key, int metric, double value) {
+        if (size == values.length) {
+            int capacity = size * 2;
+            this.series = Arrays.copyOf(this.series, capacity);
+            types = Arrays.copyOf(types, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            metrics = Arrays.copyOf(metrics, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        this.series[size] = series;
+        types[size] = type;
+        keys[size] = key;
+        metrics[size] = metric;
+        values[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int machine() {
+        return machine;
+    }
+
+    public int type(int i) {
+        return types[i];
+    }
+
+    public int key(int i) {
+        return keys[i];
+    }
+
+    public int metric(int i) {
+        return metrics[i];
+    }
+
+    public double value(int i) {
+        return values[i];
+    }
+
+    /**
+     * The dense id of the series of sample {@code i}, see {@link Dimensions#series}.
+     */
+    public int series(int i) {
+        return series[i];
+    }
+
+    /**
+     * Builds the per-metric document that {@link IostatParser.State#toDocumentList()} produces for sample {@code i}.
+     */
+    public Document toDocument(int i) {
+        String type = dimensions.name(types[i]);
+        Document document = new Document()
+                .append("machine", dimensions.name(machine))
+                .append("ts", ts)
+                .append("type", type)
+                .append("metric", dimensions.name(metrics[i]))
+                .append("value", values[i]);
+
+        if (keys[i] != Dimensions.NONE) {
+            document.append(type, dimensions.name(keys[i]));
+        }
+        return document;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleBatch{" +
+                "machine=" + dimensions.name(machine) +
+                ", ts=" + ts +
+                ", size=" + size +
+                '}';
+    }
+}
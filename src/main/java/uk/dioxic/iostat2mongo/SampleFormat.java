@@ -0,0 +1,64 @@
+package uk.dioxic.iostat2mongo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.stream.Collectors;
+
+/**
+ * A capture format and the parsers of it. Formats are loaded with {@link ServiceLoader}, so another
+ * format is added by listing its class in {@code META-INF/services/uk.dioxic.iostat2mongo.SampleFormat};
+ * the listed order is the order formats are tried in when detecting the format of a file.
+ */
+public interface SampleFormat {
+
+    int HEAD_LINES = 32;
+    String DEFAULT = "iostat";
+
+    /**
+     * The name the format is chosen by.
+     */
+    String name();
+
+    /**
+     * Whether a capture starting with these lines (at most {@link #HEAD_LINES}) is in this format.
+     */
+    boolean detects(List<String> head);
+
+    SampleParser newParser(ParserOptions options);
+
+    static List<SampleFormat> formats() {
+        List<SampleFormat> formats = new ArrayList<>();
+        ServiceLoader.load(SampleFormat.class).forEach(formats::add);
+        return formats;
+    }
+
+    static SampleFormat named(String name) {
+        List<SampleFormat> formats = formats();
+        return formats.stream()
+                .filter(format -> format.name().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("unknown format " + name + ", expected one of "
+                        + formats.stream().map(SampleFormat::name).collect(Collectors.toList())));
+    }
+
+    /**
+     * The first format that detects the start of the (decompressed) file, or iostat when none does.
+     */
+    static SampleFormat detect(Path file) throws IOException {
+        List<String> head = new ArrayList<>();
+        try (BufferedReader reader = Compression.reader(file)) {
+            String line;
+            while (head.size() < HEAD_LINES && (line = reader.readLine()) != null) {
+                head.add(line);
+            }
+        }
+        return formats().stream()
+                .filter(format -> format.detects(head))
+                .findFirst()
+                .orElseGet(() -> named(DEFAULT));
+    }
+}
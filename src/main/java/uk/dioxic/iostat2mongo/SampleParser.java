@@ -0,0 +1,82 @@
+package uk.dioxic.iostat2mongo;
+
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+/**
+ * Parses a capture of host metrics into one {@link SampleBatch} per interval, in time order, for the
+ * bucketing pipeline. Parsers are created for each capture by its {@link SampleFormat}.
+ */
+public interface SampleParser {
+
+    String STDIN = "-";
+
+    /**
+     * The batches of the file, starting at {@code from}: an offset of a previous batch, or 0. Parsers
+     * that cannot resume (their batches have no offset) parse the whole file.
+     */
+    Flux<SampleBatch> batchParse(Path file, long from);
+
+    /**
+     * The batches of a file that is still being written, or of stdin when the path is "-".
+     * The flux only completes when stdin is closed.
+     */
+    Flux<SampleBatch> batchFollow(Path file, Duration poll);
+
+    /**
+     * Stdin for the path "-", otherwise a stream that follows the end of the file.
+     */
+    static InputStream tail(Path file, Duration poll) throws IOException {
+        return STDIN.equals(file.toString()) ? System.in : new TailInputStream(file, poll);
+    }
+
+    /**
+     * The batches a cursor reads from a resource, which is closed when the flux terminates or is cancelled.
+     */
+    static <R extends Closeable> Flux<SampleBatch> generate(Callable<R> resource, Function<R, Cursor> cursor) {
+        return Flux.using(
+                resource,
+                r -> Flux.<SampleBatch, Cursor>generate(
+                        () -> cursor.apply(r),
+                        (c, sink) -> {
+                            try {
+                                SampleBatch batch = c.next();
+                                if (batch != null) {
+                                    sink.next(batch);
+                                } else {
+                                    sink.complete();
+                                }
+                            } catch (IOException e) {
+                                sink.error(e);
+                            }
+                            return c;
+                        }),
+                r -> {
+                    try {
+                        r.close();
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                })
+                .doOnNext(batch -> PipelineMetrics.get().samplesParsed(batch.size()));
+    }
+
+    /**
+     * Reads a capture one interval at a time.
+     */
+    interface Cursor {
+
+        /**
+         * The next batch, or null at the end of the capture.
+         */
+        SampleBatch next() throws IOException;
+    }
+}
@@ -0,0 +1,29 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.InsertOneModel;
+import org.bson.RawBsonDocument;
+import reactor.core.publisher.Mono;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the bucket documents of each rollup level are written: MongoDB, or files to load later.
+ */
+public interface Sink extends Closeable {
+
+    /**
+     * Writes the documents of one rollup level; the returned Mono completes once they are durable
+     * enough to checkpoint past.
+     */
+    Mono<BulkWriteResult> insert(int level, List<InsertOneModel<RawBsonDocument>> models);
+
+    /**
+     * Completes the pending writes and releases the sink.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
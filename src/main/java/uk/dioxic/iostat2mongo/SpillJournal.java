@@ -0,0 +1,362 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.InsertOneModel;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.RawBsonDocument;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded, memory-mapped journal between the aggregators and a sink. An insert appends its documents
+ * and completes once they are in the journal, so parsing runs at full speed while a drain writes them
+ * to the sink at whatever rate it sustains, retrying transient errors for as long as the server is
+ * away. Inserts only wait when the journal is full.
+ * <p>
+ * The file is a header, holding the position and sequence number of the first record not yet written
+ * to the sink, then a ring of records: length, sequence number, CRC32, level and the BSON document.
+ * Opening a journal replays the records from the header on, stopping at the first one that is torn or
+ * out of sequence, so documents acknowledged before a crash are written after it. Records written to
+ * the sink just before the crash may be written again: use deterministic ids to skip them.
+ */
+@Slf4j
+public class SpillJournal implements Sink {
+
+    private static final int MAGIC = 0x4a4e4c31;
+    private static final int HEADER = 4096;
+    private static final int RECORD_HEADER = 16;
+    private static final int WRAP = -1;
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(100);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private final Path file;
+    private final Sink sink;
+    private final WriteController controller;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final long capacity;
+    private final Scheduler drainer;
+    private final Disposable drain;
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    // guarded by this
+    private long head;
+    private long headSeq;
+    private long tail;
+    private long tailSeq;
+    private boolean closed;
+    private Throwable failure;
+
+    // drain thread only
+    private long readPos;
+    private long readSeq;
+
+    /**
+     * Opens the journal, creating it with {@code capacity} bytes of records when it does not exist,
+     * and starts draining it into the sink through the controller.
+     */
+    public SpillJournal(Path file, long capacity, Sink sink, WriteController controller) throws IOException {
+        this.file = file;
+        this.sink = sink;
+        this.controller = controller;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(32);
+        channel.read(header, 0);
+        boolean exists = header.position() == header.capacity() && header.getInt(0) == MAGIC;
+        this.capacity = exists ? header.getLong(8) : capacity;
+        if (this.capacity < 1024 * 1024 || this.capacity > Integer.MAX_VALUE - HEADER) {
+            throw new IllegalArgumentException("journal size must be between 1MB and 2GB, got " + this.capacity);
+        }
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + this.capacity);
+
+        if (exists) {
+            head = map.getLong(16);
+            headSeq = map.getLong(24);
+            recover();
+        } else {
+            map.putInt(0, MAGIC);
+            map.putLong(8, this.capacity);
+            writeHeader();
+        }
+        readPos = head;
+        readSeq = headSeq;
+        PipelineMetrics.get().journaled(tail - head);
+        if (tail > head) {
+            log.info("Replaying {} journaled documents ({}KB) from {}", tailSeq - headSeq, (tail - head) / 1024, file);
+        }
+
+        this.drainer = Schedulers.newSingle("journal-drain");
+        this.drain = Flux.<Chunk>generate(next -> {
+                    Chunk chunk = next();
+                    if (chunk != null) {
+                        next.next(chunk);
+                    } else {
+                        next.complete();
+                    }
+                })
+                .subscribeOn(drainer)
+                .flatMapSequential(this::write, controller.getMaxConcurrency(), 1)
+                .subscribe(this::release, this::fail, drained::countDown);
+    }
+
+    @Override
+    public Mono<BulkWriteResult> insert(int level, List<InsertOneModel<RawBsonDocument>> models) {
+        return Mono.fromCallable(() -> {
+            append(level, models);
+            map.force();
+            return BulkWriteResult.acknowledged(models.size(), 0, 0, 0, Collections.emptyList());
+        }).subscribeOn(Schedulers.elastic());
+    }
+
+    /**
+     * Waits for the drain to write every journaled document, then closes the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            drained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drain.dispose();
+            throw new InterruptedIOException("interrupted draining " + file);
+        } finally {
+            drainer.dispose();
+            map.force();
+            channel.close();
+            sink.close();
+        }
+        if (failure != null) {
+            throw new IOException("failed draining " + file, failure);
+        }
+    }
+
+    private synchronized void append(int level, List<InsertOneModel<RawBsonDocument>> models) throws IOException {
+        long bytes = tail;
+        for (InsertOneModel<RawBsonDocument> model : models) {
+            ByteBuffer bson = model.getDocument().getByteBuffer().asNIO();
+            int length = 1 + bson.remaining();
+            int size = RECORD_HEADER + length;
+            if (size > capacity) {
+                throw new IOException("a " + size + " byte document does not fit in journal " + file);
+            }
+            long waste;
+            while (true) {
+                if (failure != null) {
+                    throw new IOException("failed draining " + file, failure);
+                }
+                long left = capacity - index(tail);
+                waste = left < size ? left : 0;
+                if (capacity - (tail - head) >= waste + size) {
+                    break;
+                }
+                PipelineMetrics.get().journalFull();
+                // the drain may be waiting for the records appended so far
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for space in " + file);
+                }
+            }
+            if (waste > 0) {
+                if (waste >= RECORD_HEADER) {
+                    map.putInt(HEADER + index(tail), WRAP);
+                    map.putLong(HEADER + index(tail) + 4, tailSeq);
+                }
+                tail += waste;
+            }
+
+            int at = HEADER + index(tail);
+            map.putInt(at, length);
+            map.putLong(at + 4, tailSeq);
+            ByteBuffer body = map.duplicate();
+            body.position(at + RECORD_HEADER);
+            body.put((byte) level);
+            body.put(bson);
+            map.putInt(at + 12, crc(at, length));
+            tail += size;
+            tailSeq++;
+        }
+        PipelineMetrics.get().journaled(tail - bytes);
+        notifyAll();
+    }
+
+    /**
+     * The next records to write, up to the controller's batch size and bytes, or null once the journal
+     * is closed and empty or the drain has failed. Waits for records to be appended.
+     */
+    private Chunk next() {
+        long end;
+        synchronized (this) {
+            while (readPos == tail && !closed && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (readPos == tail || failure != null) {
+                return null;
+            }
+            end = tail;
+        }
+        Chunk chunk = new Chunk();
+        long start = readPos;
+        while (readPos < end && chunk.size < controller.getBatchSize() && readPos - start < controller.getMaxBatchBytes()) {
+            readPos = start(readPos, readSeq);
+            int at = HEADER + index(readPos);
+            int length = map.getInt(at);
+            byte[] bson = new byte[length - 1];
+            ByteBuffer body = map.duplicate();
+            body.position(at + RECORD_HEADER + 1);
+            body.get(bson);
+            chunk.add(map.get(at + RECORD_HEADER), new RawBsonDocument(bson));
+            readPos += RECORD_HEADER + length;
+            readSeq++;
+        }
+        chunk.end = readPos;
+        chunk.endSeq = readSeq;
+        chunk.bytes = readPos - start;
+        return chunk;
+    }
+
+    /**
+     * Writes each level of the chunk through the controller, retrying transient errors with a capped
+     * exponential backoff for as long as they last.
+     */
+    private Mono<Chunk> write(Chunk chunk) {
+        return Flux.fromIterable(chunk.models.entrySet())
+                .flatMap(level -> controller.submit(() -> sink.insert(level.getKey(), level.getValue()))
+                        .retryWhen(errors -> errors
+                                .zipWith(Flux.range(0, Integer.MAX_VALUE))
+                                .concatMap(error -> {
+                                    if (!MongoSink.isTransient(error.getT1())) {
+                                        return Mono.error(error.getT1());
+                                    }
+                                    Duration backoff = FIRST_BACKOFF.multipliedBy(1L << Math.min(error.getT2(), 16));
+                                    backoff = backoff.compareTo(MAX_BACKOFF) < 0 ? backoff : MAX_BACKOFF;
+                                    log.warn("journal drain retrying in {}ms: {}", backoff.toMillis(), error.getT1().toString());
+                                    PipelineMetrics.get().retries();
+                                    return Mono.delay(backoff);
+                                })))
+                .doOnNext(result -> PipelineMetrics.get().documentsWritten(result.getInsertedCount()))
+                .then(Mono.just(chunk));
+    }
+
+    /**
+     * Frees the space of a chunk written to the sink; chunks are released in journal order.
+     */
+    private synchronized void release(Chunk chunk) {
+        PipelineMetrics.get().journalDrained(chunk.bytes);
+        head = chunk.end;
+        headSeq = chunk.endSeq;
+        writeHeader();
+        notifyAll();
+    }
+
+    private synchronized void fail(Throwable e) {
+        log.error("failed draining {}", file, e);
+        failure = e;
+        notifyAll();
+        drained.countDown();
+    }
+
+    /**
+     * Finds the end of the records after the head: each must follow the previous one in sequence,
+     * have an intact CRC and lie within one lap of the head.
+     */
+    private void recover() {
+        tail = head;
+        tailSeq = headSeq;
+        while (true) {
+            long pos = start(tail, tailSeq);
+            int at = HEADER + index(pos);
+            if (capacity - index(pos) < RECORD_HEADER) {
+                break;
+            }
+            int length = map.getInt(at);
+            if (length < 6 || length > capacity - index(pos) - RECORD_HEADER
+                    || pos + RECORD_HEADER + length - head > capacity
+                    || map.getLong(at + 4) != tailSeq
+                    || map.getInt(at + 12) != crc(at, length)) {
+                break;
+            }
+            tail = pos + RECORD_HEADER + length;
+            tailSeq++;
+        }
+    }
+
+    /**
+     * The position of the record of sequence {@code seq} at {@code pos}: pos itself, or the start of the
+     * next lap when pos is too close to the end of the ring or holds the wrap marker of that record.
+     */
+    private long start(long pos, long seq) {
+        int index = index(pos);
+        long left = capacity - index;
+        if (left < RECORD_HEADER
+                || (map.getInt(HEADER + index) == WRAP && map.getLong(HEADER + index + 4) == seq)) {
+            return pos + left;
+        }
+        return pos;
+    }
+
+    private int crc(int at, int length) {
+        ByteBuffer body = map.duplicate();
+        body.position(at + RECORD_HEADER);
+        body.limit(at + RECORD_HEADER + length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private int index(long pos) {
+        return (int) (pos % capacity);
+    }
+
+    private void writeHeader() {
+        map.putLong(16, head);
+        map.putLong(24, headSeq);
+    }
+
+    /**
+     * Journaled documents read for one write, grouped by level, and the journal position after them.
+     */
+    private static class Chunk {
+        final Map<Integer, List<InsertOneModel<RawBsonDocument>>> models = new TreeMap<>();
+        int size;
+        long bytes;
+        long end;
+        long endSeq;
+
+        void add(int level, RawBsonDocument document) {
+            models.computeIfAbsent(level, l -> new ArrayList<>()).add(new InsertOneModel<>(document));
+            size++;
+        }
+    }
+}
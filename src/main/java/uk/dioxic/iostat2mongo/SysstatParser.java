@@ -0,0 +1,319 @@
+package uk.dioxic.iostat2mongo;
+
+import reactor.core.publisher.Flux;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the text reports of sar and mpstat. Each section of a report is a header line of column
+ * names, then a row per interval (and per CPU, interface...) led by the time of day; the machine and
+ * the date are on the first line. Columns named in capitals (CPU, IFACE, DEV...) are keys rather than
+ * metrics, and the first of them, lowercased, is the type of the samples (the tool name when there is
+ * none; DEV is device, as in iostat). Like the iostat parser, zeros are kept.
+ * sar prints every interval of a section before the next section, so its batches are only complete at
+ * the end of the file, and the whole report is held in memory until then. mpstat prints the sections
+ * of an interval together, so a batch is emitted as soon as the next interval starts.
+ */
+public class SysstatParser implements SampleParser {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern KEY_COLUMN = Pattern.compile("[A-Z][A-Z0-9_]*");
+    private static final Pattern DATE = Pattern.compile("\\d{1,2}/\\d{1,2}/\\d{2,4}|\\d{4}-\\d{2}-\\d{2}");
+    private static final Pattern TIME_LED = Pattern.compile("^\\d{2}:\\d{2}:\\d{2}(\\s+[AP]M)?\\s+\\S.*");
+
+    private final String tool;
+    private final boolean sectioned;
+    private final ParserOptions options;
+
+    /**
+     * @param sectioned whether the report prints all intervals of a section before the next section
+     */
+    public SysstatParser(String tool, boolean sectioned, ParserOptions options) {
+        this.tool = tool;
+        this.sectioned = sectioned;
+        this.options = options;
+    }
+
+    @Override
+    public Flux<SampleBatch> batchParse(Path file, long from) {
+        return SampleParser.generate(() -> Compression.reader(file), Report::new);
+    }
+
+    /**
+     * Follows mpstat output. sar reports cannot be followed, since no batch is complete until the
+     * report ends.
+     */
+    @Override
+    public Flux<SampleBatch> batchFollow(Path file, Duration poll) {
+        if (sectioned) {
+            return Flux.error(new IllegalArgumentException(tool + " reports are only complete at the end of the file and cannot be followed"));
+        }
+        return SampleParser.generate(() -> new BufferedReader(new InputStreamReader(SampleParser.tail(file, poll))), Report::new);
+    }
+
+    /**
+     * Whether the token is a number, possibly with a decimal comma.
+     */
+    static boolean numeric(String token) {
+        boolean digits = false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c != '.' && c != ',' && c != '-') {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    /**
+     * The value of a numeric column, or NaN when it is not a number.
+     */
+    static double value(String token) {
+        if (!numeric(token)) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(token.indexOf(',') >= 0 ? token.replace(',', '.') : token);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static boolean timeLed(List<String> head) {
+        return head.stream().anyMatch(line -> TIME_LED.matcher(line).matches());
+    }
+
+    private class Report implements Cursor {
+        private final BufferedReader reader;
+        private final ColumnFilter filter = options.newFilter();
+        private final Dimensions dimensions = new Dimensions();
+        private final TimestampParser timestamps = new TimestampParser();
+        private final TreeMap<LocalDateTime, SampleBatch> pending = new TreeMap<>();
+        private final Map<List<String>, Section> sections = new HashMap<>();
+        private int machine = Dimensions.NONE;
+        private String date;
+        private Section section;
+        private String time;
+        private LocalDateTime last;
+        private int days;
+        private boolean sectionEnded = true;
+        private boolean eof;
+
+        Report(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public SampleBatch next() throws IOException {
+            int lines = 0;
+            while (!eof && (sectioned || pending.size() < 2)) {
+                String line = reader.readLine();
+                if (line == null) {
+                    eof = true;
+                } else {
+                    lines++;
+                    add(line);
+                }
+            }
+            PipelineMetrics.get().linesRead(lines);
+            Map.Entry<LocalDateTime, SampleBatch> first = pending.pollFirstEntry();
+            return first != null ? first.getValue() : null;
+        }
+
+        private void add(String line) {
+            if (line.isBlank()) {
+                return;
+            }
+            if (line.startsWith("Linux")) {
+                machine = dimensions.id(IostatParser.getMachine(line));
+                Matcher matcher = DATE.matcher(line);
+                date = matcher.find() ? matcher.group() : null;
+                sections.clear();
+                section = null;
+                sectionEnded = true;
+                return;
+            }
+            String[] tokens = WHITESPACE.split(line.trim());
+            if (tokens[0].endsWith(":")) {
+                // Average: and Summary: rows close a section
+                sectionEnded = true;
+                return;
+            }
+            int first = tokens.length > 1 && (tokens[1].equals("AM") || tokens[1].equals("PM")) ? 2 : 1;
+            LocalDateTime ts = time(tokens, first);
+            if (ts == null || line.contains("RESTART")) {
+                return;
+            }
+            if (isHeader(tokens, first)) {
+                section = sections.computeIfAbsent(Arrays.asList(tokens).subList(first, tokens.length), Section::new);
+            } else if (section != null) {
+                section.add(ts, tokens, first);
+            }
+        }
+
+        /**
+         * The timestamp of a row, a day later each time the time of day goes back within a section.
+         */
+        private LocalDateTime time(String[] tokens, int count) {
+            String text = count == 2 ? tokens[0] + " " + tokens[1] : tokens[0];
+            if (!text.equals(time) || sectionEnded) {
+                LocalDateTime parsed = date != null ? timestamps.parse(date + " " + text) : null;
+                if (parsed == null) {
+                    return null;
+                }
+                if (sectionEnded) {
+                    days = 0;
+                    sectionEnded = false;
+                } else if (last != null && parsed.plusDays(days).isBefore(last)) {
+                    days++;
+                }
+                last = parsed.plusDays(days);
+                time = text;
+            }
+            return last;
+        }
+
+        private boolean isHeader(String[] tokens, int first) {
+            for (int i = first; i < tokens.length; i++) {
+                if (numeric(tokens[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The dimension ids of a header line, and the series ids of each row key seen under it.
+         */
+        private class Section {
+            final int type;
+            final boolean devices;
+            final int[] keyColumns;
+            final int[] metricColumns;
+            final int[] metrics;
+            final Map<String, int[]> rows = new HashMap<>();
+
+            Section(List<String> names) {
+                List<Integer> keys = new ArrayList<>();
+                List<Integer> included = new ArrayList<>();
+                for (int i = 0; i < names.size(); i++) {
+                    if (KEY_COLUMN.matcher(names.get(i)).matches()) {
+                        keys.add(i);
+                    } else if (filter.includesMetric(names.get(i))) {
+                        included.add(i);
+                    }
+                }
+                String typeName = keys.isEmpty() ? tool : names.get(keys.get(0)).toLowerCase(Locale.ROOT);
+                devices = typeName.equals("dev") || typeName.equals("device");
+                type = dimensions.id(devices ? "device" : typeName);
+                keyColumns = keys.stream().mapToInt(Integer::intValue).toArray();
+                metricColumns = included.stream().mapToInt(Integer::intValue).toArray();
+                metrics = included.stream().mapToInt(i -> dimensions.id(names.get(i))).toArray();
+            }
+
+            void add(LocalDateTime ts, String[] tokens, int first) {
+                String key = key(tokens, first);
+                if (metrics.length == 0 || (devices && !filter.includes(key))) {
+                    return;
+                }
+                int[] series = rows.computeIfAbsent(key, k -> {
+                    int keyId = dimensions.id(k);
+                    int[] ids = new int[metrics.length];
+                    for (int i = 0; i < metrics.length; i++) {
+                        ids[i] = dimensions.series(machine, type, keyId, metrics[i]);
+                    }
+                    return ids;
+                });
+                SampleBatch batch = pending.computeIfAbsent(ts, t -> new SampleBatch(dimensions, machine, t));
+                int keyId = dimensions.id(key);
+                for (int i = 0; i < metrics.length; i++) {
+                    int column = first + metricColumns[i];
+                    if (column < tokens.length) {
+                        double value = value(tokens[column]);
+                        if (value >= 0) {
+                            batch.add(series[i], type, keyId, metrics[i], value);
+                        }
+                    }
+                }
+            }
+
+            private String key(String[] tokens, int first) {
+                if (keyColumns.length == 0) {
+                    return null;
+                }
+                StringBuilder key = new StringBuilder();
+                for (int column : keyColumns) {
+                    if (first + column < tokens.length) {
+                        if (key.length() > 0) {
+                            key.append(' ');
+                        }
+                        key.append(tokens[first + column]);
+                    }
+                }
+                return key.toString();
+            }
+        }
+    }
+
+    /**
+     * sar reports, such as {@code sar -A -f} of a daily data file.
+     */
+    public static class Sar implements SampleFormat {
+
+        @Override
+        public String name() {
+            return "sar";
+        }
+
+        @Override
+        public boolean detects(List<String> head) {
+            return timeLed(head);
+        }
+
+        @Override
+        public SampleParser newParser(ParserOptions options) {
+            return new SysstatParser("sar", true, options);
+        }
+    }
+
+    /**
+     * mpstat reports, told from sar's CPU report by mpstat's order of columns (%irq before %steal).
+     */
+    public static class Mpstat implements SampleFormat {
+
+        @Override
+        public String name() {
+            return "mpstat";
+        }
+
+        @Override
+        public boolean detects(List<String> head) {
+            return timeLed(head) && head.stream().anyMatch(line -> {
+                int irq = line.indexOf("%irq");
+                int steal = line.indexOf("%steal");
+                return line.contains("%usr") && irq >= 0 && irq < steal;
+            });
+        }
+
+        @Override
+        public SampleParser newParser(ParserOptions options) {
+            return new SysstatParser("mpstat", false, options);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package uk.dioxic.iostat2mongo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Reads a file that is still being written, waiting for more data at the end of the file
+ * instead of returning end-of-stream. End-of-stream is only returned once the stream is closed
+ * or the reading thread is interrupted. The file is re-read from the start when it shrinks
+ * (truncated or rotated by copy-truncate).
+ */
+public class TailInputStream extends InputStream {
+
+    private final Path file;
+    private final long pollMillis;
+    private FileChannel channel;
+    private long position;
+    private volatile boolean closed;
+    private volatile boolean reading;
+
+    public TailInputStream(Path file, Duration poll) throws IOException {
+        this.file = file;
+        this.pollMillis = poll.toMillis();
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        reading = true;
+        try {
+            return poll(b, off, len);
+        } finally {
+            reading = false;
+            if (closed) {
+                channel.close();
+            }
+        }
+    }
+
+    private int poll(byte[] b, int off, int len) throws IOException {
+        while (!closed) {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+                return n;
+            }
+            if (Files.exists(file) && Files.size(file) < position) {
+                channel.close();
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                position = 0;
+                continue;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stops following; a read blocked waiting for data returns end-of-stream.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (!reading) {
+            channel.close();
+        }
+    }
+}
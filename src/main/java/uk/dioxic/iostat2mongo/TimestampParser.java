@@ -0,0 +1,268 @@
+package uk.dioxic.iostat2mongo;
+
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+/**
+ * Recognises and parses iostat interval timestamps in one pass, without regexes or formatters.
+ * The format is detected from the first timestamp and then only that format is tried; the date
+ * is reused while it does not change between intervals. Zone offsets of ISO timestamps are
+ * dropped, so every format yields the local wall-clock time. Not thread safe: use one per file.
+ */
+public class TimestampParser {
+
+    public enum Format {
+        /** {@code 12/16/18 15:00:57}, or with a four digit year */
+        US,
+        /** {@code 12/16/2018 03:00:57 PM} */
+        US_12H,
+        /** {@code 2018-12-16T15:00:57+0000} ({@code S_TIME_FORMAT=ISO}), optionally with a space for the T */
+        ISO
+    }
+
+    private final ByteSequence bytes = new ByteSequence();
+    private Format format;
+
+    private CharSequence line;
+    private int pos;
+    private int year;
+    private int month;
+    private int day;
+    private int hour;
+    private int minute;
+    private int second;
+    private LocalDate date;
+
+    public TimestampParser() {
+    }
+
+    public TimestampParser(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * The detected format, or null before the first timestamp.
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * The timestamp on the line, or null when it is not a timestamp line.
+     */
+    public LocalDateTime parse(CharSequence line) {
+        if (format != null) {
+            return scan(line, format) ? toDateTime() : null;
+        }
+        for (Format candidate : Format.values()) {
+            if (scan(line, candidate)) {
+                LocalDateTime ts = toDateTime();
+                if (ts != null) {
+                    format = candidate;
+                }
+                return ts;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #parse(CharSequence)} for the range {@code [from, to)} of the buffer.
+     */
+    public LocalDateTime parse(ByteBuffer buffer, int from, int to) {
+        return parse(bytes.wrap(buffer, from, to));
+    }
+
+    private boolean scan(CharSequence line, Format format) {
+        this.line = line;
+        this.pos = 0;
+        switch (format) {
+            case US:
+                return scanUsDate() && whitespace() && scanTime(false) && end();
+            case US_12H:
+                return scanUsDate() && whitespace() && scanTime(true) && end();
+            case ISO:
+                return scanIsoDate() && (accept('T') || whitespace()) && scanTime(false) && fraction() && zone() && end();
+            default:
+                return false;
+        }
+    }
+
+    private boolean scanUsDate() {
+        month = number(1, 2);
+        if (month < 1 || month > 12 || !accept('/')) {
+            return false;
+        }
+        day = number(1, 2);
+        if (day < 1 || day > 31 || !accept('/')) {
+            return false;
+        }
+        int start = pos;
+        year = number(2, 4);
+        if (year < 0 || pos - start == 3) {
+            return false;
+        }
+        if (pos - start == 2) {
+            year += 2000;
+        }
+        return true;
+    }
+
+    private boolean scanIsoDate() {
+        year = number(4, 4);
+        if (year < 0 || !accept('-')) {
+            return false;
+        }
+        month = number(2, 2);
+        if (month < 1 || month > 12 || !accept('-')) {
+            return false;
+        }
+        day = number(2, 2);
+        return day >= 1 && day <= 31;
+    }
+
+    private boolean scanTime(boolean twelveHour) {
+        hour = number(1, 2);
+        if (hour < 0 || !accept(':')) {
+            return false;
+        }
+        minute = number(2, 2);
+        if (minute < 0 || minute > 59 || !accept(':')) {
+            return false;
+        }
+        second = number(2, 2);
+        if (second < 0 || second > 59) {
+            return false;
+        }
+        if (!twelveHour) {
+            return hour <= 23;
+        }
+        if (hour < 1 || hour > 12 || !whitespace() || pos + 2 > line.length()) {
+            return false;
+        }
+        char meridiem = Character.toUpperCase(line.charAt(pos));
+        if ((meridiem != 'A' && meridiem != 'P') || Character.toUpperCase(line.charAt(pos + 1)) != 'M') {
+            return false;
+        }
+        pos += 2;
+        hour = hour % 12 + (meridiem == 'P' ? 12 : 0);
+        return true;
+    }
+
+    private boolean fraction() {
+        if (accept('.') || accept(',')) {
+            return number(1, 9) >= 0;
+        }
+        return true;
+    }
+
+    private boolean zone() {
+        if (accept('Z')) {
+            return true;
+        }
+        if (accept('+') || accept('-')) {
+            if (number(2, 2) < 0) {
+                return false;
+            }
+            accept(':');
+            number(2, 2);
+        }
+        return true;
+    }
+
+    /**
+     * Parses {@code min} to {@code max} digits, or returns -1 when there are fewer than {@code min}.
+     */
+    private int number(int min, int max) {
+        int value = 0;
+        int start = pos;
+        while (pos < line.length() && pos - start < max) {
+            char c = line.charAt(pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            pos++;
+        }
+        return pos - start < min ? -1 : value;
+    }
+
+    private boolean accept(char c) {
+        if (pos < line.length() && line.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean whitespace() {
+        int start = pos;
+        while (pos < line.length() && isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    private boolean end() {
+        whitespace();
+        return pos == line.length();
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    private LocalDateTime toDateTime() {
+        try {
+            if (date == null || date.getDayOfMonth() != day || date.getMonthValue() != month || date.getYear() != year) {
+                date = LocalDate.of(year, month, day);
+            }
+            return LocalDateTime.of(date, LocalTime.of(hour, minute, second));
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An ASCII view of part of a buffer, rewrapped for every line.
+     */
+    private static class ByteSequence implements CharSequence {
+        private ByteBuffer buffer;
+        private int from;
+        private int length;
+
+        ByteSequence wrap(ByteBuffer buffer, int from, int to) {
+            this.buffer = buffer;
+            this.from = from;
+            this.length = to - from;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(from + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                sb.append(charAt(i));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Merges pending bucket upserts with the same filter into one update, so a bucket written one sample
+ * (or one partial aggregate) at a time costs a single update per flush: {@code $set} keeps the latest
+ * value of each field, {@code $setOnInsert} the first, {@code $max}/{@code $min} the extreme and
+ * {@code $inc} the sum. Updates that are not {@link Document}s, or use other operators, are kept as they are.
+ * Not thread safe.
+ */
+public class UpsertCoalescer {
+
+    private static final Object TICK = new Object();
+    private static final Object END = new Object();
+
+    private final Map<Object, UpdateOneModel<Document>> pending = new LinkedHashMap<>();
+    private int updates;
+
+    /**
+     * Coalesces the updates and emits the pending ones, in first-seen order, whenever {@code maxPending}
+     * buckets are pending or {@code maxDelay} passes, and once the updates complete.
+     */
+    public static Function<Flux<UpdateOneModel<Document>>, Flux<List<UpdateOneModel<Document>>>> coalesce(int maxPending, Duration maxDelay) {
+        return updates -> Flux.defer(() -> {
+            UpsertCoalescer coalescer = new UpsertCoalescer();
+            Flux<Object> ticks = Flux.interval(maxDelay, maxDelay).map(tick -> TICK);
+
+            return Flux.merge(updates.cast(Object.class).concatWith(Flux.just(END)), ticks)
+                    .takeWhile(event -> event != END)
+                    .concatMapIterable(event -> {
+                        if (event != TICK) {
+                            @SuppressWarnings("unchecked")
+                            UpdateOneModel<Document> update = (UpdateOneModel<Document>) event;
+                            coalescer.add(update);
+                        }
+                        return event == TICK || coalescer.size() >= maxPending
+                                ? coalescer.drain()
+                                : Collections.<List<UpdateOneModel<Document>>>emptyList();
+                    })
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(coalescer.drain())));
+        });
+    }
+
+    public void add(UpdateOneModel<Document> update) {
+        updates++;
+        Object key = update.getFilter() instanceof Document ? update.getFilter() : new Object();
+        UpdateOneModel<Document> current = pending.get(key);
+        UpdateOneModel<Document> merged = current != null ? merge(current, update) : update;
+        if (merged == null) {
+            // keep both, in order: later updates of the bucket merge into the newer one
+            pending.put(new Object(), pending.remove(key));
+            merged = update;
+        }
+        pending.put(key, merged);
+    }
+
+    /**
+     * The number of distinct buckets pending.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * The pending updates as a single list, or no list when nothing is pending.
+     */
+    public List<List<UpdateOneModel<Document>>> drain() {
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<UpdateOneModel<Document>> merged = new ArrayList<>(pending.values());
+        PipelineMetrics.get().upsertsCoalesced(updates - merged.size());
+        pending.clear();
+        updates = 0;
+        return Collections.singletonList(merged);
+    }
+
+    /**
+     * The update equivalent to applying {@code x} then {@code y}, or null when they cannot be merged.
+     */
+    static UpdateOneModel<Document> merge(UpdateOneModel<Document> x, UpdateOneModel<Document> y) {
+        if (!mergeable(x.getUpdate()) || !mergeable(y.getUpdate())) {
+            return null;
+        }
+        Document merged = new Document();
+        for (Map.Entry<String, Object> op : ((Document) x.getUpdate()).entrySet()) {
+            merged.put(op.getKey(), new Document((Document) op.getValue()));
+        }
+        for (Map.Entry<String, Object> op : ((Document) y.getUpdate()).entrySet()) {
+            Document fields = (Document) merged.computeIfAbsent(op.getKey(), name -> new Document());
+            for (Map.Entry<String, Object> field : ((Document) op.getValue()).entrySet()) {
+                if (!merge(op.getKey(), fields, field.getKey(), field.getValue())) {
+                    return null;
+                }
+            }
+        }
+        return new UpdateOneModel<>(x.getFilter(), merged, x.getOptions());
+    }
+
+    private static boolean mergeable(Bson update) {
+        if (!(update instanceof Document)) {
+            return false;
+        }
+        for (Object fields : ((Document) update).values()) {
+            if (!(fields instanceof Document)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean merge(String operator, Document fields, String name, Object value) {
+        Object current = fields.get(name);
+        switch (operator) {
+            case "$set":
+                fields.put(name, value);
+                return true;
+            case "$setOnInsert":
+                fields.putIfAbsent(name, value);
+                return true;
+            case "$max":
+                if (current != null && !comparable(value, current))
+                    return false;
+                if (current == null || compare(value, current) > 0)
+                    fields.put(name, value);
+                return true;
+            case "$min":
+                if (current != null && !comparable(value, current))
+                    return false;
+                if (current == null || compare(value, current) < 0)
+                    fields.put(name, value);
+                return true;
+            case "$inc":
+                if (!(value instanceof Number) || (current != null && !(current instanceof Number)))
+                    return false;
+                fields.put(name, current == null ? value : add((Number) current, (Number) value));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean comparable(Object x, Object y) {
+        return x instanceof Number && y instanceof Number
+                || x instanceof Comparable && y != null && x.getClass() == y.getClass();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object x, Object y) {
+        if (x instanceof Number && y instanceof Number) {
+            return Double.compare(((Number) x).doubleValue(), ((Number) y).doubleValue());
+        }
+        return ((Comparable<Object>) x).compareTo(y);
+    }
+
+    private static Number add(Number x, Number y) {
+        if (x instanceof Integer && y instanceof Integer) {
+            long sum = (long) x.intValue() + y.intValue();
+            return sum == (int) sum ? (Number) (int) sum : (Number) sum;
+        }
+        if ((x instanceof Integer || x instanceof Long) && (y instanceof Integer || y instanceof Long)) {
+            return x.longValue() + y.longValue();
+        }
+        return x.doubleValue() + y.doubleValue();
+    }
+}
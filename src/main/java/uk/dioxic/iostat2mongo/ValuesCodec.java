@@ -0,0 +1,233 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Packs the value slots of a bucket into bytes: the slot count as a varint, a bitmap of the slots
+ * holding a value, then the values in slot order with Gorilla XOR compression (each value is XORed
+ * with the previous one and only the meaningful bits are kept, so repeated and slowly changing values
+ * take a bit or a few bits instead of a double). Empty (NaN) slots are only recorded in the bitmap.
+ */
+public class ValuesCodec {
+
+    private ValuesCodec() {
+    }
+
+    public static byte[] encode(double[] values) {
+        int slots = values.length;
+        while (slots > 0 && Double.isNaN(values[slots - 1])) {
+            slots--;
+        }
+        BitWriter out = new BitWriter(16 + slots * 2);
+        out.writeVarint(slots);
+        byte[] bitmap = new byte[(slots + 7) / 8];
+        for (int i = 0; i < slots; i++) {
+            if (!Double.isNaN(values[i])) {
+                bitmap[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        out.writeBytes(bitmap);
+
+        boolean first = true;
+        long previous = 0;
+        int leading = -1;
+        int trailing = 0;
+        for (int i = 0; i < slots; i++) {
+            if (Double.isNaN(values[i])) {
+                continue;
+            }
+            long bits = Double.doubleToRawLongBits(values[i]);
+            if (first) {
+                out.writeBits(bits, 64);
+                first = false;
+            } else {
+                long xor = bits ^ previous;
+                if (xor == 0) {
+                    out.writeBit(false);
+                } else {
+                    out.writeBit(true);
+                    int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+                    int trail = Long.numberOfTrailingZeros(xor);
+                    if (leading >= 0 && lead >= leading && trail >= trailing) {
+                        out.writeBit(false);
+                        out.writeBits(xor >>> trailing, 64 - leading - trailing);
+                    } else {
+                        int meaningful = 64 - lead - trail;
+                        out.writeBit(true);
+                        out.writeBits(lead, 5);
+                        out.writeBits(meaningful - 1, 6);
+                        out.writeBits(xor >>> trail, meaningful);
+                        leading = lead;
+                        trailing = trail;
+                    }
+                }
+            }
+            previous = bits;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The value slots of packed bytes, with NaN for the empty ones.
+     */
+    public static double[] decode(byte[] packed) {
+        BitReader in = new BitReader(packed);
+        int slots = in.readVarint();
+        byte[] bitmap = in.readBytes((slots + 7) / 8);
+        double[] values = new double[slots];
+        Arrays.fill(values, Double.NaN);
+
+        boolean first = true;
+        long previous = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 0; i < slots; i++) {
+            if ((bitmap[i >>> 3] & (1 << (i & 7))) == 0) {
+                continue;
+            }
+            long bits;
+            if (first) {
+                bits = in.readBits(64);
+                first = false;
+            } else if (!in.readBit()) {
+                bits = previous;
+            } else {
+                if (in.readBit()) {
+                    leading = (int) in.readBits(5);
+                    trailing = 64 - leading - ((int) in.readBits(6) + 1);
+                }
+                bits = previous ^ (in.readBits(64 - leading - trailing) << trailing);
+            }
+            values[i] = Double.longBitsToDouble(bits);
+            previous = bits;
+        }
+        return values;
+    }
+
+    /**
+     * The values as they are stored unpacked: a document of value by slot offset.
+     */
+    public static Document toDocument(byte[] packed) {
+        Document document = new Document();
+        double[] values = decode(packed);
+        for (int i = 0; i < values.length; i++) {
+            if (!Double.isNaN(values[i])) {
+                document.put(Integer.toString(i), values[i]);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Prints the values of base64 encoded packed values, as shown for BinData by the mongo shell.
+     */
+    public static void main(String[] args) {
+        for (String arg : args) {
+            System.out.println(DocumentUtil.toJson(toDocument(Base64.getDecoder().decode(arg))));
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] bytes;
+        private int bit;
+
+        BitWriter(int capacity) {
+            bytes = new byte[Math.max(8, capacity)];
+        }
+
+        void writeBit(boolean value) {
+            ensure(1);
+            if (value) {
+                bytes[bit >>> 3] |= 0x80 >>> (bit & 7);
+            }
+            bit++;
+        }
+
+        /**
+         * Writes the low {@code count} bits of {@code value}, most significant first.
+         */
+        void writeBits(long value, int count) {
+            ensure(count);
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    bytes[bit >>> 3] |= 0x80 >>> (bit & 7);
+                }
+                bit++;
+            }
+        }
+
+        void writeBytes(byte[] values) {
+            for (byte value : values) {
+                writeBits(value & 0xFF, 8);
+            }
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeBits((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            writeBits(value, 8);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (bit + 7) >>> 3);
+        }
+
+        private void ensure(int count) {
+            int needed = (bit + count + 7) >>> 3;
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] bytes;
+        private int bit;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean readBit() {
+            if (bit >>> 3 >= bytes.length) {
+                throw new IllegalArgumentException("packed values end after " + bytes.length + " bytes");
+            }
+            boolean value = (bytes[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+            bit++;
+            return value;
+        }
+
+        long readBits(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        byte[] readBytes(int count) {
+            byte[] values = new byte[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = (byte) readBits(8);
+            }
+            return values;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = (int) readBits(8);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed slot count");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package uk.dioxic.iostat2mongo;
+
+import reactor.core.publisher.Flux;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses {@code vmstat -t} output, one batch per line. The type of each column is the group it is under
+ * on the line above the column names (procs, memory, swap, io, system, cpu), found by position since
+ * vmstat right-aligns the values under the group. vmstat has no machine line, so the samples have no
+ * machine. Like the iostat parser, zeros are kept.
+ */
+public class VmstatParser implements SampleParser {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern GROUP = Pattern.compile("\\S+");
+    private static final String TIMESTAMP = "timestamp";
+
+    private final ParserOptions options;
+
+    public VmstatParser(ParserOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public Flux<SampleBatch> batchParse(Path file, long from) {
+        return SampleParser.generate(() -> Compression.reader(file), Report::new);
+    }
+
+    @Override
+    public Flux<SampleBatch> batchFollow(Path file, Duration poll) {
+        return SampleParser.generate(() -> new BufferedReader(new InputStreamReader(SampleParser.tail(file, poll))), Report::new);
+    }
+
+    private class Report implements Cursor {
+        private final BufferedReader reader;
+        private final ColumnFilter filter = options.newFilter();
+        private final Dimensions dimensions = new Dimensions();
+        private final TimestampParser timestamps = new TimestampParser();
+        private String groups;
+        private boolean timestamped;
+        private int[] columns;
+        private int[] types;
+        private int[] metrics;
+        private int[] series;
+
+        Report(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public SampleBatch next() throws IOException {
+            int lines = 0;
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    String trimmed = line.trim();
+                    if (trimmed.isEmpty()) {
+                        continue;
+                    }
+                    if (trimmed.startsWith("procs")) {
+                        groups = line;
+                        continue;
+                    }
+                    String[] tokens = WHITESPACE.split(trimmed);
+                    if (!SysstatParser.numeric(tokens[0])) {
+                        header(line, tokens);
+                        continue;
+                    }
+                    if (metrics == null) {
+                        continue;
+                    }
+                    if (!timestamped || tokens.length < 2) {
+                        throw new IOException("vmstat output has no timestamps, capture it with vmstat -t");
+                    }
+                    LocalDateTime ts = timestamps.parse(tokens[tokens.length - 2] + " " + tokens[tokens.length - 1]);
+                    if (ts == null) {
+                        continue;
+                    }
+                    SampleBatch batch = new SampleBatch(dimensions, Dimensions.NONE, ts);
+                    for (int i = 0; i < metrics.length; i++) {
+                        if (columns[i] < tokens.length - 2) {
+                            double value = SysstatParser.value(tokens[columns[i]]);
+                            if (value >= 0) {
+                                batch.add(series[i], types[i], Dimensions.NONE, metrics[i], value);
+                            }
+                        }
+                    }
+                    return batch;
+                }
+                return null;
+            } finally {
+                PipelineMetrics.get().linesRead(lines);
+            }
+        }
+
+        /**
+         * Resolves the group and the ids of each included column of a line of column names.
+         */
+        private void header(String line, String[] names) {
+            List<int[]> spans = new ArrayList<>();
+            List<String> groupNames = new ArrayList<>();
+            if (groups != null) {
+                Matcher matcher = GROUP.matcher(groups);
+                while (matcher.find()) {
+                    spans.add(new int[]{matcher.start(), matcher.end()});
+                    groupNames.add(matcher.group().replace("-", ""));
+                }
+            }
+            timestamped = groupNames.contains(TIMESTAMP);
+
+            List<Integer> included = new ArrayList<>();
+            List<String> groupOf = new ArrayList<>();
+            int end = 0;
+            for (int i = 0; i < names.length; i++) {
+                end = line.indexOf(names[i], end) + names[i].length();
+                String group = group(spans, groupNames, end - 1);
+                if (!group.equals(TIMESTAMP) && filter.includesMetric(names[i])) {
+                    included.add(i);
+                    groupOf.add(group);
+                }
+            }
+
+            columns = included.stream().mapToInt(Integer::intValue).toArray();
+            types = groupOf.stream().mapToInt(dimensions::id).toArray();
+            metrics = new int[columns.length];
+            series = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                metrics[i] = dimensions.id(names[columns[i]]);
+                series[i] = dimensions.series(Dimensions.NONE, types[i], Dimensions.NONE, metrics[i]);
+            }
+        }
+
+        /**
+         * The group whose span holds the position, or the nearest one; "vmstat" without a group line.
+         */
+        private String group(List<int[]> spans, List<String> names, int position) {
+            int nearest = -1;
+            int distance = Integer.MAX_VALUE;
+            for (int i = 0; i < spans.size(); i++) {
+                int[] span = spans.get(i);
+                int d = position < span[0] ? span[0] - position : position >= span[1] ? position - span[1] + 1 : 0;
+                if (d < distance) {
+                    nearest = i;
+                    distance = d;
+                }
+            }
+            return nearest >= 0 ? names.get(nearest) : "vmstat";
+        }
+    }
+
+    public static class Format implements SampleFormat {
+
+        @Override
+        public String name() {
+            return "vmstat";
+        }
+
+        @Override
+        public boolean detects(List<String> head) {
+            return head.stream()
+                    .filter(line -> !line.isBlank())
+                    .findFirst()
+                    .map(line -> line.trim().startsWith("procs"))
+                    .orElse(false);
+        }
+
+        @Override
+        public SampleParser newParser(ParserOptions options) {
+            return new VmstatParser(options);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package uk.dioxic.iostat2mongo;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the bulk writes in flight and tunes the write concurrency and batch size from the observed
+ * write latency: both grow additively while writes complete within the target latency and back off
+ * when they are slower, or multiplicatively when they fail. Shared by every file being loaded.
+ */
+@Slf4j
+public class WriteController {
+
+    @Getter private final int minBatchSize;
+    @Getter private final int maxBatchSize;
+    @Getter private final long maxBatchBytes;
+    @Getter private final int maxConcurrency;
+    private final long targetNanos;
+
+    private final Queue<Permit> waiting = new ArrayDeque<>();
+    private int concurrency = 1;
+    private int batchSize;
+    private int inFlight;
+
+    /**
+     * @param maxBatchSize  the most documents in one bulk write
+     * @param maxBatchBytes the most encoded bytes in one bulk write
+     * @param maxConcurrency the most bulk writes in flight
+     * @param targetLatency the bulk write latency to stay under
+     */
+    public WriteController(int maxBatchSize, long maxBatchBytes, int maxConcurrency, Duration targetLatency) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.minBatchSize = Math.max(1, this.maxBatchSize / 10);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.targetNanos = targetLatency.toNanos();
+        this.batchSize = this.maxBatchSize;
+    }
+
+    /**
+     * Subscribes to the write once fewer than the current concurrency limit are in flight.
+     */
+    public <T> Mono<T> submit(Supplier<Mono<T>> write) {
+        return Mono.defer(() -> {
+            Permit permit = new Permit();
+            return Mono.<Void>create(sink -> acquire(permit, sink))
+                    .then(Mono.defer(() -> {
+                        permit.start = System.nanoTime();
+                        return write.get();
+                    }))
+                    .doFinally(signal -> release(permit, signal == SignalType.ON_ERROR));
+        });
+    }
+
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    private void acquire(Permit permit, MonoSink<Void> sink) {
+        synchronized (this) {
+            permit.sink = sink;
+            if (inFlight >= concurrency) {
+                permit.queued = System.nanoTime();
+                waiting.add(permit);
+                return;
+            }
+            inFlight++;
+            permit.granted = true;
+        }
+        sink.success();
+    }
+
+    private void release(Permit permit, boolean error) {
+        Queue<Permit> granted = new ArrayDeque<>();
+        synchronized (this) {
+            if (!permit.granted) {
+                waiting.remove(permit);
+                return;
+            }
+            inFlight--;
+            if (permit.start > 0) {
+                long nanos = System.nanoTime() - permit.start;
+                adjust(nanos, error);
+                PipelineMetrics.get().write(nanos, error);
+            }
+            while (inFlight < concurrency && !waiting.isEmpty()) {
+                Permit next = waiting.poll();
+                next.granted = true;
+                inFlight++;
+                granted.add(next);
+            }
+        }
+        granted.forEach(next -> {
+            PipelineMetrics.get().stall(System.nanoTime() - next.queued);
+            next.sink.success();
+        });
+    }
+
+    private void adjust(long nanos, boolean error) {
+        int oldConcurrency = concurrency;
+        int oldBatchSize = batchSize;
+
+        if (error) {
+            concurrency = Math.max(1, concurrency / 2);
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+        } else if (nanos > targetNanos) {
+            concurrency = Math.max(1, concurrency - 1);
+            batchSize = Math.max(minBatchSize, batchSize * 3 / 4);
+        } else {
+            if (inFlight + 1 >= concurrency) {
+                concurrency = Math.min(maxConcurrency, concurrency + 1);
+            }
+            if (nanos < targetNanos / 2) {
+                batchSize = Math.min(maxBatchSize, batchSize + batchSize / 4 + 1);
+            }
+        }
+
+        if (concurrency != oldConcurrency || batchSize != oldBatchSize) {
+            log.debug("write took {}ms{}, concurrency {} -> {}, batch size {} -> {}",
+                    nanos / 1_000_000, error ? " and failed" : "", oldConcurrency, concurrency, oldBatchSize, batchSize);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WriteController{" +
+                "concurrency=" + concurrency + "/" + maxConcurrency +
+                ", batchSize=" + batchSize + "/" + maxBatchSize +
+                ", maxBatchBytes=" + maxBatchBytes +
+                ", inFlight=" + inFlight +
+                '}';
+    }
+
+    private static class Permit {
+        MonoSink<Void> sink;
+        boolean granted;
+        long queued;
+        long start;
+    }
+}
@@ -0,0 +1,224 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class BucketAggregatorTest {
+
+    private final Dimensions dimensions = new Dimensions();
+
+    private final Bucketer bucketer = Bucketer.builder()
+            .bucketLevel(ChronoUnit.MINUTES)
+            .resolution(ChronoUnit.SECONDS)
+            .dimensionField("machine")
+            .dimensionField("type")
+            .dimensionField("metric")
+            .dimensionField("device")
+            .factField("value")
+            .includeValues(true)
+            .build();
+
+    @Test
+    public void aggregate_emitsEachBucketOnce() {
+        LocalDateTime minute = LocalDateTime.of(2019, 2, 2, 1, 59, 0);
+
+        Flux<SampleBatch> batches = Flux.just(
+                batch(minute.plusSeconds(58), 1),
+                batch(minute.plusSeconds(59), 3),
+                batch(minute.plusSeconds(60), 5),
+                batch(minute.plusSeconds(61), 7));
+
+        StepVerifier.create(BucketAggregator.documents(bucketer).aggregate(batches))
+                .assertNext(doc -> assertBucket(doc, minute, 2, 2d))
+                .assertNext(doc -> assertBucket(doc, minute.plusMinutes(1), 2, 6d))
+                .verifyComplete();
+    }
+
+    @Test
+    public void aggregate_reusesBucketValues() {
+        LocalDateTime minute = LocalDateTime.of(2019, 2, 2, 1, 59, 0);
+
+        Flux<SampleBatch> batches = Flux.just(
+                batch(minute.plusSeconds(30), 1),
+                batch(minute.plusSeconds(61), 7));
+
+        StepVerifier.create(BucketAggregator.documents(bucketer).aggregate(batches))
+                .assertNext(doc -> assertThat(doc.get("values", Document.class)).containsOnlyKeys("30"))
+                .assertNext(doc -> assertThat(doc.get("values", Document.class)).containsOnlyKeys("1"))
+                .verifyComplete();
+    }
+
+    @Test
+    public void aggregate_countsZeros() {
+        LocalDateTime minute = LocalDateTime.of(2019, 2, 2, 1, 0, 0);
+        Flux<SampleBatch> batches = Flux.just(
+                batch(minute, 0),
+                batch(minute.plusSeconds(1), 0),
+                batch(minute.plusSeconds(2), 0),
+                batch(minute.plusSeconds(3), 9));
+
+        StepVerifier.create(BucketAggregator.documents(bucketer).aggregate(batches))
+                .assertNext(doc -> {
+                    assertBucket(doc, minute, 4, 2.25);
+                    assertThat(doc).containsEntry("zeros", 3).containsEntry("min", 0d);
+                    assertThat(doc.get("values", Document.class)).containsEntry("0", 0d).containsEntry("3", 9d);
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    public void aggregate_splitsGappedIntervals() {
+        LocalDateTime minute = LocalDateTime.of(2019, 2, 2, 1, 59, 0);
+
+        Flux<SampleBatch> batches = Flux.just(
+                batch(minute.plusSeconds(53), 1),
+                batch(minute.plusSeconds(58), 3),
+                batch(minute.plusSeconds(63), 5));
+
+        StepVerifier.create(BucketAggregator.documents(bucketer).aggregate(batches))
+                .assertNext(doc -> assertBucket(doc, minute, 2, 2d))
+                .assertNext(doc -> assertBucket(doc, minute.plusMinutes(1), 1, 5d))
+                .verifyComplete();
+    }
+
+    @Test
+    public void aggregate_holdsWindowsForAllowedLateness() {
+        LocalDateTime minute = LocalDateTime.of(2019, 2, 2, 1, 59, 0);
+        long late = PipelineMetrics.get().getLateSamples();
+
+        Flux<SampleBatch> batches = Flux.just(
+                batch(minute.plusSeconds(50), 1),
+                batch(minute.plusSeconds(65), 5),
+                batch(minute.plusSeconds(58), 3),
+                batch(minute.plusSeconds(100), 7),
+                batch(minute.plusSeconds(59), 9));
+
+        BucketAggregator<Document> aggregator = BucketAggregator.documents(bucketer).allowedLateness(Duration.ofSeconds(30));
+
+        StepVerifier.create(aggregator.aggregate(batches))
+                .assertNext(doc -> assertBucket(doc, minute, 2, 2d))
+                .assertNext(doc -> assertBucket(doc, minute.plusMinutes(1), 2, 6d))
+                .verifyComplete();
+        assertThat(PipelineMetrics.get().getLateSamples() - late).as("late samples").isEqualTo(1);
+    }
+
+    @Test
+    public void rollup_buildsHoursFromFinishedMinutes() {
+        LocalDateTime hour = LocalDateTime.of(2019, 2, 2, 1, 0, 0);
+        Bucketer hourly = Bucketer.builder()
+                .bucketLevel(ChronoUnit.HOURS)
+                .resolution(ChronoUnit.MINUTES)
+                .dimensionField("machine")
+                .dimensionField("type")
+                .dimensionField("metric")
+                .dimensionField("device")
+                .factField("value")
+                .includeValues(true)
+                .build();
+
+        Flux<SampleBatch> batches = Flux.just(
+                batch(hour.plusSeconds(10), 1),
+                batch(hour.plusSeconds(20), 3),
+                batch(hour.plusMinutes(59), 8),
+                batch(hour.plusMinutes(60), 5));
+
+        BucketAggregator<Document> aggregator = BucketAggregator.documents(bucketer).rollup(hourly, hourly::toDocument);
+
+        StepVerifier.create(aggregator.aggregate(batches))
+                .assertNext(doc -> assertBucket(doc, hour, 2, 2d))
+                .assertNext(doc -> assertBucket(doc, hour.plusMinutes(59), 1, 8d))
+                .assertNext(doc -> assertBucket(doc, hour.plusHours(1), 1, 5d))
+                .assertNext(doc -> {
+                    assertBucket(doc, hour, 3, 4d);
+                    assertThat(doc).containsEntry("max", 8d).containsEntry("min", 1d);
+                    assertThat(doc.get("values", Document.class)).containsEntry("0", 2d).containsEntry("59", 8d);
+                })
+                .assertNext(doc -> assertBucket(doc, hour.plusHours(1), 1, 5d))
+                .verifyComplete();
+    }
+
+    @Test
+    public void rollup_mergesSketches() {
+        LocalDateTime hour = LocalDateTime.of(2019, 2, 2, 1, 0, 0);
+        Bucketer minutes = Bucketer.builder()
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .dimensionField("machine")
+                .dimensionField("device")
+                .factField("value")
+                .includeValues(false)
+                .includeSketch(true)
+                .build();
+        Bucketer hourly = Bucketer.builder()
+                .bucketLevel(ChronoUnit.HOURS)
+                .resolution(ChronoUnit.MINUTES)
+                .dimensionField("device")
+                .factField("value")
+                .includeValues(false)
+                .includeSketch(true)
+                .build();
+
+        Flux<SampleBatch> batches = Flux.range(0, 600)
+                .map(i -> batch(hour.plusSeconds(i * 6), i % 50 == 49 ? 1000 : 1 + i % 10));
+
+        BucketAggregator<Document> aggregator = BucketAggregator.documents(minutes).rollup(hourly, hourly::toDocument);
+
+        StepVerifier.create(aggregator.aggregate(batches).filter(doc -> !doc.containsKey("machine")))
+                .assertNext(doc -> {
+                    assertBucket(doc, hour, 600, 15180d / 600);
+                    assertThat(doc.getDouble("p50")).isCloseTo(5, within(0.05));
+                    assertThat(doc.getDouble("p99")).isCloseTo(1000, within(10d));
+                    assertThat(QuantileSketch.decode(doc.get("sketch", Binary.class).getData()).getCount()).isEqualTo(600);
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    public void rollup_resumesFromOpenCoarsestBucket() {
+        LocalDateTime hour = LocalDateTime.of(2019, 2, 2, 1, 0, 0);
+        Bucketer hourly = Bucketer.builder()
+                .bucketLevel(ChronoUnit.HOURS)
+                .resolution(ChronoUnit.MINUTES)
+                .dimensionField("device")
+                .factField("value")
+                .build();
+
+        Flux<SampleBatch> batches = Flux.just(
+                batch(hour.plusMinutes(59), 1, 100),
+                batch(hour.plusMinutes(60), 2, 200),
+                batch(hour.plusMinutes(61), 3, 300));
+
+        BucketAggregator<Document> aggregator = BucketAggregator.documents(bucketer).rollup(hourly, hourly::toDocument);
+
+        StepVerifier.create(aggregator.windows(batches).map(BucketAggregator.Window::getOffset))
+                .expectNext(BucketAggregator.Window.NONE, 200L, BucketAggregator.Window.END)
+                .verifyComplete();
+    }
+
+    private void assertBucket(Document doc, LocalDateTime ts, int count, double avg) {
+        assertThat(doc.get("ts")).as("bucket timestamp").isEqualTo(ts);
+        assertThat(doc).as("device").containsEntry("device", "sda");
+        assertThat(doc).as("count").containsEntry("count", count);
+        assertThat(doc).as("avg").containsEntry("avg", avg);
+    }
+
+    private SampleBatch batch(LocalDateTime ts, double value) {
+        return batch(ts, value, -1);
+    }
+
+    private SampleBatch batch(LocalDateTime ts, double value, long offset) {
+        SampleBatch batch = new SampleBatch(dimensions, dimensions.id("machine123"), ts, offset);
+        batch.add(dimensions.id("device"), dimensions.id("sda"), dimensions.id("r/s"), value);
+        return batch;
+    }
+}
@@ -0,0 +1,105 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BucketEncoderTest {
+
+    private final LocalDateTime ts = LocalDateTime.of(2019, 2, 2, 1, 59, 59);
+
+    private final Bucketer.BucketerBuilder builder = Bucketer.builder()
+            .bucketLevel(ChronoUnit.MINUTES)
+            .resolution(ChronoUnit.SECONDS)
+            .dimensionField("machine")
+            .dimensionField("type")
+            .dimensionField("metric")
+            .dimensionField("device")
+            .factField("value")
+            .attribute("env", "prod")
+            .attribute("tags", new Document("rack", 12));
+
+    @Test
+    public void encode_matchesDocument() {
+        assertEncoded(builder.includeValues(true).build());
+    }
+
+    @Test
+    public void encode_packedValues() {
+        assertEncoded(builder.includeValues(true).packValues(true).build());
+    }
+
+    @Test
+    public void encode_withoutValues() {
+        assertEncoded(builder.includeValues(false).includeMin(false).build());
+    }
+
+    @Test
+    public void encode_sketch() {
+        assertEncoded(builder.includeValues(false).includeSketch(true).percentiles(List.of(50d, 99.9d)).build());
+    }
+
+    @Test
+    public void encode_deterministicId() {
+        Bucketer bucketer = builder.includeValues(true).deterministicId(true).build();
+        assertEncoded(bucketer);
+
+        ObjectId id = bucketer.id(bucket(bucketer, new Dimensions(), "sda", ts));
+        assertThat(bucketer.id(bucket(bucketer, new Dimensions(), "sda", ts.minusSeconds(30)))).as("same bucket, new run").isEqualTo(id);
+        assertThat(bucketer.id(bucket(bucketer, new Dimensions(), "sdb", ts))).as("other series").isNotEqualTo(id);
+        assertThat(bucketer.id(bucket(bucketer, new Dimensions(), "sda", ts.plusSeconds(1)))).as("next bucket").isNotEqualTo(id);
+        assertThat(id.getDate().toInstant()).isEqualTo(bucketer.truncate(ts).toInstant(ZoneOffset.UTC));
+    }
+
+    @Test
+    public void encode_reusesBuffer() {
+        Bucketer bucketer = builder.includeValues(true).build();
+        BucketEncoder encoder = new BucketEncoder(bucketer);
+        Dimensions dimensions = new Dimensions();
+        BucketTable buckets = new BucketTable();
+
+        bucketer.accumulate(buckets, batch(dimensions, "sda", ts, 1.5));
+        RawBsonDocument first = encoder.encode(buckets.iterator().next());
+
+        buckets = new BucketTable();
+        bucketer.accumulate(buckets, batch(dimensions, "nvme0n1", ts, 2.5));
+        encoder.encode(buckets.iterator().next());
+
+        assertThat(first.getString("device").getValue()).isEqualTo("sda");
+        assertThat(first.getDouble("max").getValue()).isEqualTo(1.5);
+    }
+
+    private void assertEncoded(Bucketer bucketer) {
+        Dimensions dimensions = new Dimensions();
+        BucketTable buckets = new BucketTable();
+        bucketer.accumulate(buckets, batch(dimensions, "sda", ts.minusSeconds(1), 10.5));
+        bucketer.accumulate(buckets, batch(dimensions, "sda", ts, 29.5));
+        Bucket bucket = buckets.iterator().next();
+
+        BsonDocument expected = new RawBsonDocument(bucketer.toDocument(bucket), DocumentUtil.getDocumentCodec());
+        RawBsonDocument actual = new BucketEncoder(bucketer).encode(bucket);
+
+        assertThat(actual).isEqualTo(expected);
+        assertThat(actual.keySet()).containsExactlyElementsOf(expected.keySet());
+        assertThat(actual.getString("env").getValue()).isEqualTo("prod");
+    }
+
+    private Bucket bucket(Bucketer bucketer, Dimensions dimensions, String device, LocalDateTime ts) {
+        return bucketer.accumulate(new BucketTable(), batch(dimensions, device, ts, 1)).iterator().next();
+    }
+
+    private SampleBatch batch(Dimensions dimensions, String device, LocalDateTime ts, double value) {
+        SampleBatch batch = new SampleBatch(dimensions, dimensions.id("machine123"), ts);
+        batch.add(dimensions.id("device"), dimensions.id(device), dimensions.id("r/s"), value);
+        return batch;
+    }
+}
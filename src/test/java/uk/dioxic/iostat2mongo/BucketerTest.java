@@ -12,6 +12,8 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -134,6 +136,148 @@ public class BucketerTest {
         assertTs(bucketer.bucket(document), bucketYear, 2);
     }
 
+    @Test
+    public void accumulate_minuteLevel_secondResolution() {
+        Bucketer bucketer = builder.dimensionField("device")
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .includeValues(true)
+                .build();
+
+        Dimensions dimensions = new Dimensions();
+        BucketTable buckets = new BucketTable();
+        bucketer.accumulate(buckets, batch(dimensions, ts.minusSeconds(1), 10.5));
+        bucketer.accumulate(buckets, batch(dimensions, ts, 29.5));
+
+        assertThat(buckets).hasSize(1);
+        Document doc = bucketer.toDocument(buckets.iterator().next());
+
+        assertThat(doc.get("ts")).as("bucket timestamp").isEqualTo(bucketMinute);
+        assertThat(doc).as("dimensions").containsEntry("machine", "machine123")
+                .containsEntry("type", "device")
+                .containsEntry("metric", "r/s")
+                .containsEntry("device", "sda");
+        assertThat(doc).as("facts").containsEntry("max", 29.5)
+                .containsEntry("min", 10.5)
+                .containsEntry("count", 2)
+                .containsEntry("sum", 40d)
+                .containsEntry("avg", 20d);
+        assertThat(doc.get("values", Document.class)).as("values").containsEntry("58", 10.5).containsEntry("59", 29.5);
+    }
+
+    @Test
+    public void bucket_partialAggregate() {
+        Bucketer bucketer = builder.dimensionField("device")
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .build();
+
+        Dimensions dimensions = new Dimensions();
+        BucketTable buckets = new BucketTable();
+        bucketer.accumulate(buckets, batch(dimensions, ts.minusSeconds(1), 10.5));
+        bucketer.accumulate(buckets, batch(dimensions, ts, 29.5));
+
+        UpdateOneModel<Document> model = bucketer.bucket(buckets.iterator().next());
+        BsonDocument filter = model.getFilter().toBsonDocument(Document.class, DocumentUtil.getCodecRegistry());
+        BsonDocument update = model.getUpdate().toBsonDocument(Document.class, DocumentUtil.getCodecRegistry());
+
+        assertThat(filter).as("filter keys").containsOnlyKeys("ts", "machine", "type", "metric", "device");
+        assertThat(update.getDocument("$max").get("max")).as("max").isEqualTo(new BsonDouble(29.5));
+        assertThat(update.getDocument("$min").get("min")).as("min").isEqualTo(new BsonDouble(10.5));
+        assertThat(update.getDocument("$inc").get("count").asNumber().intValue()).as("count").isEqualTo(2);
+        assertThat(update.getDocument("$inc").get("zeros").asNumber().intValue()).as("zeros").isEqualTo(0);
+        assertThat(update.getDocument("$inc").get("sum")).as("sum").isEqualTo(new BsonDouble(40));
+        assertThat(update.getDocument("$set")).as("values").containsOnlyKeys("values.58", "values.59");
+    }
+
+    @Test
+    public void insertAndUpsert_writeSameFacts() {
+        Bucketer bucketer = builder.dimensionField("device")
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .includeValues(false)
+                .build();
+
+        Dimensions dimensions = new Dimensions();
+        BucketTable buckets = new BucketTable();
+        bucketer.accumulate(buckets, batch(dimensions, ts, 29.5));
+        Bucket bucket = buckets.iterator().next();
+
+        BsonDocument update = bucketer.bucket(bucket).getUpdate().toBsonDocument(Document.class, DocumentUtil.getCodecRegistry());
+        Set<String> upserted = update.values().stream()
+                .flatMap(operator -> operator.asDocument().keySet().stream())
+                .collect(Collectors.toSet());
+
+        assertThat(upserted).containsExactlyInAnyOrder("max", "min", "count", "zeros", "sum");
+        assertThat(bucketer.toDocument(bucket)).containsKeys(upserted.toArray(new String[0]));
+    }
+
+    @Test
+    public void allZeros() {
+        Bucketer bucketer = builder.dimensionField("device")
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .build();
+
+        Document zero = new Document(document).append("value", 0d);
+        Document combined = bucketer.combine(bucketer.combine(new Document(), zero), zero);
+        assertThat(combined).as("combined").containsEntry("max", 0d)
+                .containsEntry("min", 0d)
+                .containsEntry("count", 2)
+                .containsEntry("zeros", 2)
+                .containsEntry("sum", 0d)
+                .containsEntry("avg", 0d);
+
+        Dimensions dimensions = new Dimensions();
+        BucketTable buckets = new BucketTable();
+        bucketer.accumulate(buckets, batch(dimensions, ts.minusSeconds(1), 0));
+        bucketer.accumulate(buckets, batch(dimensions, ts, 0));
+        assertThat(bucketer.toDocument(buckets.iterator().next())).as("accumulated").containsEntry("max", 0d)
+                .containsEntry("min", 0d)
+                .containsEntry("zeros", 2);
+    }
+
+    @Test
+    public void dimensionKey_noCollision() {
+        Bucketer bucketer = builder.dimensionField("device")
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .build();
+
+        Document x = new Document("machine", "sda").append("metric", "1");
+        Document y = new Document("machine", "sd").append("metric", "a1");
+
+        assertThat(bucketer.dimensionKey(x)).isNotEqualTo(bucketer.dimensionKey(y));
+        assertThat(bucketer.dimensionKey(x)).isEqualTo(bucketer.dimensionKey(new Document("metric", "1").append("machine", "sda")));
+    }
+
+    @Test
+    public void accumulate_seriesIds() {
+        Bucketer bucketer = builder.dimensionField("device")
+                .bucketLevel(ChronoUnit.MINUTES)
+                .resolution(ChronoUnit.SECONDS)
+                .build();
+
+        Dimensions dimensions = new Dimensions();
+        SampleBatch batch = new SampleBatch(dimensions, dimensions.id("machine123"), ts);
+        batch.add(dimensions.id("device"), dimensions.id("sda"), dimensions.id("r/s"), 1);
+        batch.add(dimensions.id("device"), dimensions.id("sda"), dimensions.id("w/s"), 2);
+        batch.add(dimensions.id("device"), dimensions.id("sdb"), dimensions.id("r/s"), 3);
+        batch.add(dimensions.id("device"), dimensions.id("sda"), dimensions.id("r/s"), 4);
+
+        assertThat(new int[]{batch.series(0), batch.series(1), batch.series(2), batch.series(3)}).containsExactly(0, 1, 2, 0);
+
+        BucketTable buckets = bucketer.accumulate(new BucketTable(), batch);
+        assertThat(buckets).hasSize(3);
+        assertThat(buckets.get(0).getCount()).isEqualTo(2);
+    }
+
+    private SampleBatch batch(Dimensions dimensions, LocalDateTime ts, double value) {
+        SampleBatch batch = new SampleBatch(dimensions, dimensions.id("machine123"), ts);
+        batch.add(dimensions.id("device"), dimensions.id("sda"), dimensions.id("r/s"), value);
+        return batch;
+    }
+
     private void assertTs(UpdateOneModel<Document> bucket, LocalDateTime bucketTs, long bucketOffset) {
         BsonDocument filter = bucket.getFilter().toBsonDocument(Document.class, DocumentUtil.getCodecRegistry());
 
@@ -0,0 +1,67 @@
+package uk.dioxic.iostat2mongo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CheckpointStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void acknowledge_persistsOffset() throws IOException {
+        Path file = Files.write(dir.resolve("iostat.log"), "Linux (machine)\n".repeat(100).getBytes());
+        Path store = dir.resolve("checkpoint.json");
+
+        CheckpointStore checkpoints = new CheckpointStore(store);
+        checkpoints.acknowledge(checkpoints.get(file), 160);
+
+        CheckpointStore.Checkpoint checkpoint = new CheckpointStore(store).get(file);
+        assertThat(checkpoint.getOffset()).as("offset").isEqualTo(160);
+        assertThat(checkpoint.isComplete()).as("complete").isFalse();
+    }
+
+    @Test
+    public void acknowledge_endOfFileCompletes() throws IOException {
+        Path file = Files.write(dir.resolve("iostat.log"), "Linux (machine)\n".repeat(100).getBytes());
+        Path store = dir.resolve("checkpoint.json");
+
+        CheckpointStore checkpoints = new CheckpointStore(store);
+        checkpoints.acknowledge(checkpoints.get(file), BucketAggregator.Window.END);
+
+        assertThat(new CheckpointStore(store).get(file).isComplete()).as("complete").isTrue();
+    }
+
+    @Test
+    public void get_grownFileKeepsCheckpoint() throws IOException {
+        Path file = Files.write(dir.resolve("iostat.log"), "Linux (machine)\n".repeat(100).getBytes());
+        Path store = dir.resolve("checkpoint.json");
+
+        CheckpointStore checkpoints = new CheckpointStore(store);
+        checkpoints.acknowledge(checkpoints.get(file), BucketAggregator.Window.END);
+        Files.write(file, "12/16/18 15:00:10\n".getBytes(), StandardOpenOption.APPEND);
+
+        CheckpointStore.Checkpoint checkpoint = new CheckpointStore(store).get(file);
+        assertThat(checkpoint.getOffset()).as("offset").isEqualTo(1600);
+        assertThat(checkpoint.isComplete()).as("complete").isFalse();
+    }
+
+    @Test
+    public void get_replacedFileStartsOver() throws IOException {
+        Path file = Files.write(dir.resolve("iostat.log"), "Linux (machine)\n".repeat(100).getBytes());
+        Path store = dir.resolve("checkpoint.json");
+
+        CheckpointStore checkpoints = new CheckpointStore(store);
+        checkpoints.acknowledge(checkpoints.get(file), 160);
+        Files.write(file, "Linux (other)\n".repeat(100).getBytes());
+
+        assertThat(new CheckpointStore(store).get(file).getOffset()).as("offset").isZero();
+    }
+}
@@ -0,0 +1,110 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.client.model.InsertOneModel;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileSinkTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void bson_writesDumpPerLevel() throws IOException {
+        Path minutes = dir.resolve("test/iostats.bson");
+        Path hours = dir.resolve("test/iostats_hour.bson");
+
+        try (BsonFileSink sink = new BsonFileSink(List.of(minutes, hours), false)) {
+            // enough documents to fill several chunks
+            for (int i = 0; i < 100; i++) {
+                assertThat(sink.insert(0, models(i * 1000, 1000)).block().getInsertedCount()).isEqualTo(1000);
+            }
+            sink.insert(1, models(0, 3)).block();
+        }
+
+        List<BsonDocument> documents = readBson(Files.readAllBytes(minutes));
+        assertThat(documents).hasSize(100_000);
+        for (int i = 0; i < documents.size(); i++) {
+            assertThat(documents.get(i).getInt32("i").getValue()).isEqualTo(i);
+        }
+        assertThat(readBson(Files.readAllBytes(hours))).hasSize(3);
+    }
+
+    @Test
+    public void insert_completesOnceWritten() throws IOException {
+        Path file = dir.resolve("test/iostats.bson");
+
+        try (BsonFileSink sink = new BsonFileSink(List.of(file), false)) {
+            sink.insert(0, models(0, 10)).block();
+            assertThat(readBson(Files.readAllBytes(file))).hasSize(10);
+
+            sink.insert(0, models(10, 5)).block();
+            assertThat(readBson(Files.readAllBytes(file))).hasSize(15);
+        }
+    }
+
+    @Test
+    public void bson_gzip() throws IOException {
+        Path file = dir.resolve("test/iostats.bson.gz");
+
+        try (BsonFileSink sink = new BsonFileSink(List.of(file), true)) {
+            sink.insert(0, models(0, 10)).block();
+        }
+
+        assertThat(readBson(gunzip(file))).hasSize(10);
+    }
+
+    @Test
+    public void json_writesOneDocumentPerLine() throws IOException {
+        Path file = dir.resolve("test/iostats.json.gz");
+
+        try (JsonFileSink sink = new JsonFileSink(List.of(file), true)) {
+            sink.insert(0, models(0, 5)).block();
+        }
+
+        List<String> lines = new String(gunzip(file), StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        assertThat(lines).hasSize(5);
+        assertThat(Document.parse(lines.get(4)).getInteger("i")).isEqualTo(4);
+    }
+
+    private static List<InsertOneModel<RawBsonDocument>> models(int from, int count) {
+        List<InsertOneModel<RawBsonDocument>> models = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            Document document = new Document("i", i).append("device", "nvme0n1");
+            models.add(new InsertOneModel<>(new RawBsonDocument(document, DocumentUtil.getDocumentCodec())));
+        }
+        return models;
+    }
+
+    private static List<BsonDocument> readBson(byte[] bytes) {
+        List<BsonDocument> documents = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int position = 0; position < bytes.length; position += buffer.getInt(position)) {
+            documents.add(new RawBsonDocument(bytes, position, buffer.getInt(position)));
+        }
+        return documents;
+    }
+
+    private static byte[] gunzip(Path file) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package uk.dioxic.iostat2mongo;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HistogramTest {
+
+    @Test
+    public void percentile_withinPowerOfTwo() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getMean()).isEqualTo(50.5);
+        assertThat(histogram.getMax()).isEqualTo(100);
+        assertThat(histogram.percentile(50)).isBetween(50L, 100L);
+        assertThat(histogram.percentile(99)).isEqualTo(100);
+        assertThat(histogram.percentile(1)).isEqualTo(1);
+    }
+
+    @Test
+    public void percentile_empty() {
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+
+        assertThat(histogram.percentile(99)).isEqualTo(0);
+        assertThat(new Histogram().percentile(50)).isEqualTo(0);
+    }
+}
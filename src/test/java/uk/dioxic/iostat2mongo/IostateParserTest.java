@@ -1,14 +1,23 @@
 package uk.dioxic.iostat2mongo;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import reactor.test.StepVerifier;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 public class IostateParserTest {
 
@@ -22,4 +31,145 @@ public class IostateParserTest {
             .verifyComplete();
 
     }
+
+    @Test
+    public void mappedParserTest() throws URISyntaxException {
+        Path file = resource("iostat-sample.log");
+        IostatParser parser = IostatParser.builder().build();
+
+        List<String> expected = parser.generatorParse(file)
+                .map(IostatParser.State::toString)
+                .collectList()
+                .block();
+
+        StepVerifier.create(parser.mappedParse(file).map(IostatParser.State::toString))
+                .expectNextSequence(Objects.requireNonNull(expected))
+                .verifyComplete();
+
+        assertThat(expected).hasSize(18);
+    }
+
+    @Test
+    public void mappedParserDocuments() throws URISyntaxException {
+        Path file = resource("iostat-sample.log");
+        IostatParser parser = IostatParser.builder().mapped(true).build();
+
+        List<String> devices = parser.parse(file)
+                .map(IostatParser.State::toDocument)
+                .filter(doc -> doc.containsKey("device"))
+                .map(doc -> doc.getString("device"))
+                .distinct()
+                .collectList()
+                .block();
+
+        assertThat(devices).containsExactly("sda", "nvme0n1");
+    }
+
+    @Test
+    public void filteredParserTest() throws URISyntaxException {
+        Path file = resource("iostat-sample.log");
+        IostatParser parser = IostatParser.builder()
+                .filter("w/s")
+                .filter("%util")
+                .device("nvme*")
+                .build();
+
+        List<String> expected = parser.generatorParse(file)
+                .map(IostatParser.State::toString)
+                .collectList()
+                .block();
+
+        StepVerifier.create(parser.mappedParse(file).map(IostatParser.State::toString))
+                .expectNextSequence(Objects.requireNonNull(expected))
+                .verifyComplete();
+
+        assertThat(expected).hasSize(6);
+
+        IostatParser.State state = parser.mappedParse(file).blockFirst();
+        assertThat(Objects.requireNonNull(state).toDocument())
+                .containsEntry("device", "nvme0n1")
+                .containsEntry("w/s", 13.92)
+                .containsEntry("%util", 0.11)
+                .doesNotContainKeys("r/s", "await");
+    }
+
+    @Test
+    public void splitParserTest() throws URISyntaxException, IOException {
+        Path file = resource("iostat-sample.log");
+        IostatParser parser = IostatParser.builder()
+                .parallelism(4)
+                .splitSize(100)
+                .build();
+
+        assertThat(parser.split(file)).as("ranges").hasSize(4);
+
+        List<String> expected = IostatParser.builder().build().mappedParse(file)
+                .map(IostatParser.State::toString)
+                .collectList()
+                .block();
+
+        StepVerifier.create(parser.parse(file).map(IostatParser.State::toString))
+                .expectNextSequence(Objects.requireNonNull(expected))
+                .verifyComplete();
+    }
+
+    @Test
+    public void batchParserKeepsZeros() throws URISyntaxException {
+        Path file = resource("iostat-sample.log");
+        IostatParser parser = IostatParser.builder()
+                .filter("r/s")
+                .filter("w/s")
+                .build();
+
+        SampleBatch batch = Objects.requireNonNull(parser.batchParse(file).blockFirst());
+        List<String> samples = IntStream.range(0, batch.size())
+                .mapToObj(batch::toDocument)
+                .filter(doc -> "sda".equals(doc.getString("device")))
+                .map(doc -> doc.getString("metric") + "=" + doc.getDouble("value"))
+                .collect(Collectors.toList());
+
+        assertThat(samples).containsExactly("r/s=0.0", "w/s=15.22");
+    }
+
+    @Test
+    public void resumeParserTest() throws URISyntaxException {
+        Path file = resource("iostat-sample.log");
+        IostatParser parser = IostatParser.builder().mapped(true).build();
+
+        List<SampleBatch> batches = parser.batchParse(file).collectList().block();
+        SampleBatch resumeAt = Objects.requireNonNull(batches).get(3);
+
+        StepVerifier.create(parser.batchParse(file, resumeAt.getOffset()).map(SampleBatch::getTs))
+                .expectNext(resumeAt.getTs(), batches.get(4).getTs(), batches.get(5).getTs())
+                .verifyComplete();
+    }
+
+    @Test
+    public void compressedParserTest(@TempDir Path dir) throws URISyntaxException, IOException {
+        Path file = resource("iostat-sample.log");
+        Path compressed = dir.resolve("iostat-sample.log.1");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            Files.copy(file, out);
+        }
+        IostatParser parser = IostatParser.builder()
+                .mapped(true)
+                .parallelism(4)
+                .build();
+
+        assertThat(Compression.detect(compressed)).isEqualTo(Compression.GZIP);
+        assertThat(Compression.detect(file)).isEqualTo(Compression.NONE);
+
+        List<String> expected = IostatParser.builder().build().generatorParse(file)
+                .map(IostatParser.State::toString)
+                .collectList()
+                .block();
+
+        StepVerifier.create(parser.parse(compressed).map(IostatParser.State::toString))
+                .expectNextSequence(Objects.requireNonNull(expected))
+                .verifyComplete();
+    }
+
+    private Path resource(String name) throws URISyntaxException {
+        return Paths.get(Objects.requireNonNull(Thread.currentThread().getContextClassLoader().getResource(name)).toURI());
+    }
 }
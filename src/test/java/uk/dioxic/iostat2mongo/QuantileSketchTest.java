@@ -0,0 +1,92 @@
+package uk.dioxic.iostat2mongo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void quantile_withinRelativeAccuracy() {
+        Random random = new Random(42);
+        QuantileSketch sketch = new QuantileSketch(0.01);
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 2);
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double q : new double[]{0, 0.5, 0.95, 0.99, 1}) {
+            double exact = values[(int) (q * (values.length - 1))];
+            assertThat(sketch.quantile(q)).as("q%s", q).isCloseTo(exact, within(exact * 0.01));
+        }
+    }
+
+    @Test
+    public void merge_equalsOneSketch() {
+        Random random = new Random(7);
+        QuantileSketch all = new QuantileSketch(0.02);
+        QuantileSketch low = new QuantileSketch(0.02);
+        QuantileSketch high = new QuantileSketch(0.02);
+        for (int i = 0; i < 1000; i++) {
+            double value = random.nextDouble() * 100;
+            all.add(value);
+            (i % 2 == 0 ? low : high).add(value * (i % 2 == 0 ? 0.001 : 1000));
+            all.add(value * (i % 2 == 0 ? 0.001 : 1000));
+            (i % 3 == 0 ? low : high).add(value);
+        }
+        low.merge(high);
+
+        assertThat(low.getCount()).isEqualTo(all.getCount());
+        assertThat(low.encode()).isEqualTo(all.encode());
+    }
+
+    @Test
+    public void decode_roundTrips() {
+        QuantileSketch sketch = new QuantileSketch(0.01);
+        sketch.add(0);
+        sketch.add(0.25, 3);
+        sketch.add(1500);
+        sketch.add(Double.NaN);
+
+        QuantileSketch decoded = QuantileSketch.decode(sketch.encode());
+
+        assertThat(decoded.getAccuracy()).isEqualTo(0.01);
+        assertThat(decoded.getCount()).isEqualTo(5);
+        assertThat(decoded.quantile(0)).isEqualTo(0d);
+        assertThat(decoded.quantile(0.5)).isCloseTo(0.25, within(0.0025));
+        assertThat(decoded.quantile(1)).isCloseTo(1500, within(15d));
+        assertThat(decoded.encode()).isEqualTo(sketch.encode());
+    }
+
+    @Test
+    public void clear_reusesBins() {
+        QuantileSketch sketch = new QuantileSketch(0.01);
+        sketch.add(1e6);
+        sketch.clear();
+
+        assertThat(sketch.getCount()).isZero();
+        assertThat(sketch.quantile(0.5)).isNaN();
+
+        sketch.add(2);
+        assertThat(sketch.quantile(0.5)).isCloseTo(2, within(0.02));
+    }
+
+    @Test
+    public void add_foldsLowestBinsPastMaxBins() {
+        QuantileSketch sketch = new QuantileSketch(0.01);
+        sketch.add(1e-30);
+        sketch.add(5);
+        sketch.add(1e6);
+
+        assertThat(sketch.quantile(0)).as("folded into the lowest bin kept").isGreaterThan(1e-30).isLessThan(5);
+        assertThat(sketch.quantile(0.5)).isCloseTo(5, within(0.05));
+        assertThat(sketch.quantile(1)).isCloseTo(1e6, within(1e4));
+        assertThat(sketch.encode().length).isLessThan(QuantileSketch.MAX_BINS * 2);
+    }
+}
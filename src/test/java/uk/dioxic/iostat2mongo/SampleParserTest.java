@@ -0,0 +1,131 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SampleParserTest {
+
+    @Test
+    public void detect() throws URISyntaxException, IOException {
+        assertThat(SampleFormat.detect(resource("iostat-sample.log")).name()).isEqualTo("iostat");
+        assertThat(SampleFormat.detect(resource("iostat-sample.json")).name()).isEqualTo("iostat-json");
+        assertThat(SampleFormat.detect(resource("sar-sample.log")).name()).isEqualTo("sar");
+        assertThat(SampleFormat.detect(resource("mpstat-sample.log")).name()).isEqualTo("mpstat");
+        assertThat(SampleFormat.detect(resource("vmstat-sample.log")).name()).isEqualTo("vmstat");
+    }
+
+    @Test
+    public void named_unknown() {
+        assertThatThrownBy(() -> SampleFormat.named("nmon"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("sar");
+    }
+
+    @Test
+    public void sar_rollsOverMidnight() throws URISyntaxException {
+        List<SampleBatch> batches = parse("sar", "sar-sample.log", ParserOptions.builder().build());
+
+        assertThat(batches).extracting(SampleBatch::getTs)
+                .containsExactly(LocalDateTime.parse("2018-12-16T23:59:01"), LocalDateTime.parse("2018-12-17T00:00:01"));
+        assertThat(documents(batches))
+                .extracting(doc -> doc.getString("type"))
+                .containsOnly("cpu", "sar", "device");
+        assertThat(documents(batches))
+                .filteredOn(doc -> doc.getString("type").equals("cpu"))
+                .extracting(doc -> doc.getString("cpu"))
+                .containsOnly("all", "0", "1");
+    }
+
+    @Test
+    public void sar_filtersDevices() throws URISyntaxException {
+        List<SampleBatch> batches = parse("sar", "sar-sample.log", ParserOptions.builder().device("sda").filter("%util").build());
+
+        assertThat(documents(batches))
+                .filteredOn(doc -> doc.getString("type").equals("device"))
+                .allSatisfy(doc -> {
+                    assertThat(doc.getString("device")).isEqualTo("sda");
+                    assertThat(doc.getString("metric")).isEqualTo("%util");
+                });
+    }
+
+    @Test
+    public void sar_cannotBeFollowed() throws URISyntaxException {
+        SampleParser parser = SampleFormat.named("sar").newParser(ParserOptions.builder().build());
+
+        assertThatThrownBy(() -> parser.batchFollow(resource("sar-sample.log"), Duration.ofMillis(10)).blockFirst(Duration.ofSeconds(5)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("cannot be followed");
+    }
+
+    @Test
+    public void mpstat() throws URISyntaxException {
+        List<SampleBatch> batches = parse("mpstat", "mpstat-sample.log", ParserOptions.builder().build());
+
+        assertThat(batches).hasSize(2);
+        assertThat(documents(batches))
+                .extracting(doc -> doc.getString("metric"))
+                .contains("%usr", "%sys", "%idle");
+    }
+
+    @Test
+    public void vmstat_typesByGroup() throws URISyntaxException {
+        List<SampleBatch> batches = parse("vmstat", "vmstat-sample.log", ParserOptions.builder().build());
+
+        assertThat(batches).extracting(SampleBatch::getTs)
+                .containsExactly(LocalDateTime.parse("2018-12-16T15:00:57"),
+                        LocalDateTime.parse("2018-12-16T15:00:58"),
+                        LocalDateTime.parse("2018-12-16T15:00:59"));
+        assertThat(documents(batches))
+                .filteredOn(doc -> doc.getString("metric").equals("free"))
+                .extracting(doc -> doc.getString("type"))
+                .containsOnly("memory");
+        assertThat(documents(batches))
+                .extracting(doc -> doc.getString("type"))
+                .doesNotContain("timestamp");
+    }
+
+    @Test
+    public void iostatJson_matchesTextMetrics() throws URISyntaxException {
+        ParserOptions options = ParserOptions.builder().build();
+        Set<String> text = metrics(parse("iostat", "iostat-sample.log", options));
+        Set<String> json = metrics(parse("iostat-json", "iostat-sample.json", options));
+
+        assertThat(json).contains("cpu %user", "device %util");
+        assertThat(text).containsAll(json);
+    }
+
+    private Set<String> metrics(List<SampleBatch> batches) {
+        return documents(batches).stream()
+                .map(doc -> doc.getString("type") + " " + doc.getString("metric"))
+                .collect(Collectors.toSet());
+    }
+
+    private List<SampleBatch> parse(String format, String name, ParserOptions options) throws URISyntaxException {
+        return SampleFormat.named(format).newParser(options).batchParse(resource(name), 0).collectList().block();
+    }
+
+    private List<Document> documents(List<SampleBatch> batches) {
+        return batches.stream()
+                .flatMap(batch -> IntStream.range(0, batch.size()).mapToObj(batch::toDocument))
+                .collect(Collectors.toList());
+    }
+
+    private Path resource(String name) throws URISyntaxException {
+        return Paths.get(Objects.requireNonNull(Thread.currentThread().getContextClassLoader().getResource(name)).toURI());
+    }
+}
@@ -0,0 +1,123 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.MongoSocketException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.InsertOneModel;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpillJournalTest {
+
+    private static final long CAPACITY = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private final WriteController controller = new WriteController(100, 16 * 1024 * 1024, 4, Duration.ofSeconds(1));
+
+    @Test
+    public void insert_drainsAcrossLaps() throws IOException {
+        Recorder recorder = new Recorder();
+        long journaled = PipelineMetrics.get().getJournalBytes();
+
+        try (SpillJournal journal = new SpillJournal(dir.resolve("journal"), CAPACITY, recorder, controller)) {
+            // several laps of the ring, so records wrap and appends wait whenever the drain falls behind
+            for (int i = 0; i < 200; i++) {
+                journal.insert(i % 2, models(i * 500, 500)).block();
+            }
+        }
+
+        assertThat(recorder.ids(0)).hasSize(50_000).doesNotHaveDuplicates();
+        assertThat(recorder.ids(1)).hasSize(50_000).doesNotHaveDuplicates();
+        assertThat(PipelineMetrics.get().getJournalBytes()).as("journal drained").isEqualTo(journaled);
+    }
+
+    @Test
+    public void drain_retriesTransientErrors() throws IOException {
+        AtomicInteger failures = new AtomicInteger(2);
+        Recorder recorder = new Recorder();
+        long retries = PipelineMetrics.get().getRetries();
+        Sink flaky = (level, models) -> failures.getAndDecrement() > 0
+                ? Mono.error(new MongoSocketException("connection reset", new ServerAddress()))
+                : recorder.insert(level, models);
+
+        try (SpillJournal journal = new SpillJournal(dir.resolve("journal"), CAPACITY, flaky, controller)) {
+            journal.insert(0, models(0, 10)).block();
+        }
+
+        assertThat(recorder.ids(0)).hasSize(10);
+        assertThat(PipelineMetrics.get().getRetries() - retries).as("retries").isEqualTo(2);
+    }
+
+    @Test
+    public void open_replaysUnwrittenDocuments() throws IOException {
+        Path file = dir.resolve("journal");
+        AtomicInteger writes = new AtomicInteger();
+        Recorder first = new Recorder();
+        Sink failing = (level, models) -> writes.getAndIncrement() == 0
+                ? first.insert(level, models)
+                : Mono.error(new IllegalStateException("server gone"));
+
+        SpillJournal journal = new SpillJournal(file, CAPACITY, failing, controller);
+        journal.insert(0, models(0, 100)).block();
+        journal.insert(0, models(100, 150)).block();
+        assertThatThrownBy(journal::close).isInstanceOf(IOException.class);
+
+        Recorder second = new Recorder();
+        new SpillJournal(file, CAPACITY, second, controller).close();
+
+        int written = first.ids(0).size();
+        assertThat(written).isBetween(1, 100);
+        assertThat(second.ids(0)).containsExactlyElementsOf(
+                IntStream.range(written, 250).boxed().collect(Collectors.toList()));
+
+        Recorder third = new Recorder();
+        new SpillJournal(file, CAPACITY, third, controller).close();
+        assertThat(third.ids(0)).isEmpty();
+    }
+
+    private static List<InsertOneModel<RawBsonDocument>> models(int from, int count) {
+        List<InsertOneModel<RawBsonDocument>> models = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            Document document = new Document("i", i).append("device", "nvme0n1");
+            models.add(new InsertOneModel<>(new RawBsonDocument(document, DocumentUtil.getDocumentCodec())));
+        }
+        return models;
+    }
+
+    private static class Recorder implements Sink {
+        private final List<List<RawBsonDocument>> levels = List.of(
+                Collections.synchronizedList(new ArrayList<>()), Collections.synchronizedList(new ArrayList<>()));
+
+        @Override
+        public Mono<BulkWriteResult> insert(int level, List<InsertOneModel<RawBsonDocument>> models) {
+            return Mono.fromCallable(() -> {
+                models.forEach(model -> levels.get(level).add(model.getDocument()));
+                return BulkWriteResult.acknowledged(models.size(), 0, 0, 0, Collections.emptyList());
+            });
+        }
+
+        List<Integer> ids(int level) {
+            return levels.get(level).stream()
+                    .map(document -> document.getInt32("i").getValue())
+                    .collect(Collectors.toList());
+        }
+    }
+}
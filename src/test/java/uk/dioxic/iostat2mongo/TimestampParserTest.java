@@ -0,0 +1,93 @@
+package uk.dioxic.iostat2mongo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimestampParserTest {
+
+    private static final LocalDateTime TS = LocalDateTime.of(2018, 12, 16, 15, 0, 57);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void parse_usFormat() {
+        TimestampParser parser = new TimestampParser();
+
+        assertThat(parser.parse("12/16/18 15:00:57")).isEqualTo(TS);
+        assertThat(parser.getFormat()).isEqualTo(TimestampParser.Format.US);
+        assertThat(parser.parse("12/16/2018 15:00:57")).isEqualTo(TS);
+        assertThat(parser.parse("1/2/19 01:02:03")).isEqualTo(LocalDateTime.of(2019, 1, 2, 1, 2, 3));
+    }
+
+    @Test
+    public void parse_twelveHourFormat() {
+        TimestampParser parser = new TimestampParser();
+
+        assertThat(parser.parse("12/16/2018 03:00:57 PM")).isEqualTo(TS);
+        assertThat(parser.getFormat()).isEqualTo(TimestampParser.Format.US_12H);
+        assertThat(parser.parse("12/16/2018 12:00:57 AM")).isEqualTo(TS.withHour(0));
+        assertThat(parser.parse("12/16/2018 12:00:57 pm")).isEqualTo(TS.withHour(12));
+        assertThat(parser.parse("12/16/18 15:00:57")).as("other format once detected").isNull();
+    }
+
+    @Test
+    public void parse_isoFormat() {
+        TimestampParser parser = new TimestampParser();
+
+        assertThat(parser.parse("2018-12-16T15:00:57+0100")).isEqualTo(TS);
+        assertThat(parser.getFormat()).isEqualTo(TimestampParser.Format.ISO);
+        assertThat(parser.parse("2018-12-16T15:00:57Z")).isEqualTo(TS);
+        assertThat(parser.parse("2018-12-16 15:00:57")).isEqualTo(TS);
+        assertThat(parser.parse("2018-12-16T15:00:57.123-05:00")).isEqualTo(TS);
+    }
+
+    @Test
+    public void parse_notTimestamps() {
+        TimestampParser parser = new TimestampParser();
+
+        assertThat(parser.parse("sda                0.00     0.94     0.00    15.22")).isNull();
+        assertThat(parser.parse("            1.54    0.00    1.77    0.76    0.00   95.93")).isNull();
+        assertThat(parser.parse("12/16/18")).isNull();
+        assertThat(parser.parse("13/16/18 15:00:57")).isNull();
+        assertThat(parser.parse("02/30/18 15:00:57")).isNull();
+        assertThat(parser.parse("12/16/18 25:00:57")).isNull();
+        assertThat(parser.getFormat()).isNull();
+    }
+
+    @Test
+    public void parse_fileFormats() throws IOException, URISyntaxException {
+        Path sample = Paths.get(Objects.requireNonNull(Thread.currentThread().getContextClassLoader().getResource("iostat-sample.log")).toURI());
+        IostatParser parser = IostatParser.builder().build();
+        List<LocalDateTime> expected = timestamps(parser, sample);
+
+        List<String> lines = Files.readAllLines(sample);
+        Path iso = Files.write(dir.resolve("iso.log"), lines.stream()
+                .map(line -> line.replaceAll("^12/16/18 (\\d\\d:\\d\\d:\\d\\d)$", "2018-12-16T$1+0000"))
+                .collect(Collectors.toList()));
+        Path twelveHour = Files.write(dir.resolve("12h.log"), lines.stream()
+                .map(line -> line.replaceAll("^12/16/18 15:(\\d\\d:\\d\\d)$", "12/16/2018 03:$1 PM"))
+                .collect(Collectors.toList()));
+
+        assertThat(timestamps(parser, iso)).isEqualTo(expected);
+        assertThat(timestamps(parser, twelveHour)).isEqualTo(expected);
+        assertThat(parser.mappedParse(iso).map(state -> state.ts).collectList().block()).isEqualTo(expected);
+        assertThat(parser.mappedParse(twelveHour).map(state -> state.ts).collectList().block()).isEqualTo(expected);
+    }
+
+    private List<LocalDateTime> timestamps(IostatParser parser, Path file) {
+        return parser.generatorParse(file).map(state -> state.ts).collectList().block();
+    }
+}
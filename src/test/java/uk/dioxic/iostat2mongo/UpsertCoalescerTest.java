@@ -0,0 +1,81 @@
+package uk.dioxic.iostat2mongo;
+
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UpsertCoalescerTest {
+
+    private final LocalDateTime minute = LocalDateTime.of(2019, 2, 2, 1, 59, 0);
+
+    private final Bucketer bucketer = Bucketer.builder()
+            .bucketLevel(ChronoUnit.MINUTES)
+            .resolution(ChronoUnit.SECONDS)
+            .dimensionField("machine")
+            .dimensionField("device")
+            .factField("value")
+            .build();
+
+    @Test
+    public void add_mergesSamplesOfOneBucket() {
+        UpsertCoalescer coalescer = new UpsertCoalescer();
+        for (int second = 0; second < 60; second++) {
+            coalescer.add(bucketer.bucket(sample("sda", minute.plusSeconds(second), second)));
+        }
+
+        List<List<UpdateOneModel<Document>>> drained = coalescer.drain();
+        assertThat(drained).hasSize(1);
+        assertThat(drained.get(0)).as("one update per bucket").hasSize(1);
+
+        UpdateOneModel<Document> model = drained.get(0).get(0);
+        Document update = (Document) model.getUpdate();
+        assertThat(model.getFilter()).isEqualTo(new Document("ts", minute).append("machine", "machine123").append("device", "sda"));
+        assertThat(model.getOptions().isUpsert()).as("upsert").isTrue();
+        assertThat(update.get("$inc", Document.class)).containsEntry("count", 60);
+        assertThat(update.get("$max", Document.class)).containsEntry("max", 59d);
+        assertThat(update.get("$min", Document.class)).containsEntry("min", 0d);
+        assertThat(update.get("$set", Document.class)).hasSize(60).containsEntry("values.30", 30d);
+        assertThat(coalescer.drain()).as("drained").isEmpty();
+    }
+
+    @Test
+    public void add_keepsBucketsApart() {
+        UpsertCoalescer coalescer = new UpsertCoalescer();
+        coalescer.add(bucketer.bucket(sample("sda", minute, 1)));
+        coalescer.add(bucketer.bucket(sample("sdb", minute, 2)));
+        coalescer.add(bucketer.bucket(sample("sda", minute.plusMinutes(1), 3)));
+        coalescer.add(bucketer.bucket(sample("sda", minute.plusSeconds(1), 4)));
+
+        assertThat(coalescer.size()).isEqualTo(3);
+        List<UpdateOneModel<Document>> models = coalescer.drain().get(0);
+        assertThat(((Document) models.get(0).getUpdate()).get("$inc", Document.class)).containsEntry("count", 2);
+        assertThat(((Document) models.get(1).getUpdate()).get("$inc", Document.class)).containsEntry("count", 1);
+    }
+
+    @Test
+    public void coalesce_flushesAtMaxPending() {
+        Flux<UpdateOneModel<Document>> updates = Flux.range(0, 10)
+                .map(i -> bucketer.bucket(sample(i % 2 == 0 ? "sda" : "sdb", minute.plusMinutes(i / 6), i)));
+
+        StepVerifier.create(updates.transform(UpsertCoalescer.coalesce(3, Duration.ofHours(1))))
+                .assertNext(models -> assertThat(models).hasSize(3))
+                .assertNext(models -> assertThat(models).hasSize(2))
+                .verifyComplete();
+    }
+
+    private Document sample(String device, LocalDateTime ts, double value) {
+        return new Document("ts", ts)
+                .append("machine", "machine123")
+                .append("device", device)
+                .append("value", value);
+    }
+}
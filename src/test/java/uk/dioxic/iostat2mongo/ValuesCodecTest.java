@@ -0,0 +1,65 @@
+package uk.dioxic.iostat2mongo;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ValuesCodecTest {
+
+    @Test
+    public void decode_roundTrips() {
+        Random random = new Random(42);
+        double[] values = new double[62];
+        for (int i = 0; i < values.length; i++) {
+            switch (i % 5) {
+                case 0:
+                    values[i] = Double.NaN;
+                    break;
+                case 1:
+                    values[i] = 0;
+                    break;
+                default:
+                    values[i] = Math.round(random.nextDouble() * 10000) / 100d;
+            }
+        }
+        values[3] = -0d;
+        values[4] = Double.MAX_VALUE;
+        values[6] = Double.NEGATIVE_INFINITY;
+
+        double[] decoded = ValuesCodec.decode(ValuesCodec.encode(values));
+
+        assertThat(decoded).hasSize(values.length);
+        for (int i = 0; i < decoded.length; i++) {
+            assertThat(Double.doubleToRawLongBits(decoded[i])).as("slot %d", i)
+                    .isEqualTo(Double.doubleToRawLongBits(values[i]));
+        }
+    }
+
+    @Test
+    public void encode_dropsTrailingEmptySlots() {
+        double[] values = new double[64];
+        Arrays.fill(values, Double.NaN);
+
+        assertThat(ValuesCodec.decode(ValuesCodec.encode(values))).isEmpty();
+
+        values[2] = 7.5;
+        assertThat(ValuesCodec.toDocument(ValuesCodec.encode(values))).isEqualTo(new Document("2", 7.5));
+    }
+
+    @Test
+    public void encode_packsSteadyValuesIntoBits() {
+        double[] values = new double[60];
+        Arrays.fill(values, 12.5);
+        values[30] = 13.25;
+
+        byte[] packed = ValuesCodec.encode(values);
+
+        // 1 byte count, 8 bytes bitmap, 8 bytes first value, then about a bit per repeated value
+        assertThat(packed.length).isLessThan(30);
+        assertThat(ValuesCodec.decode(packed)).containsExactly(values);
+    }
+}
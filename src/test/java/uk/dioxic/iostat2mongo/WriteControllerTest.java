@@ -0,0 +1,57 @@
+package uk.dioxic.iostat2mongo;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WriteControllerTest {
+
+    @Test
+    public void submit_boundsWritesInFlight() {
+        WriteController controller = new WriteController(1000, 1024, 4, Duration.ofSeconds(10));
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        Flux.range(0, 100)
+                .flatMap(i -> controller.submit(() -> Mono.fromCallable(() -> peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+                        .delayElement(Duration.ofMillis(5))
+                        .doOnNext(value -> inFlight.decrementAndGet())))
+                .blockLast();
+
+        assertThat(peak.get()).as("peak writes in flight").isBetween(2, 4);
+        assertThat(controller.getConcurrency()).as("concurrency").isEqualTo(4);
+    }
+
+    @Test
+    public void submit_backsOffOnSlowWrites() {
+        WriteController controller = new WriteController(1000, 1024, 4, Duration.ofMillis(1));
+
+        Flux.range(0, 5)
+                .concatMap(i -> controller.submit(() -> Mono.delay(Duration.ofMillis(20))))
+                .blockLast();
+
+        assertThat(controller.getConcurrency()).as("concurrency").isEqualTo(1);
+        assertThat(controller.getBatchSize()).as("batch size").isLessThan(1000).isGreaterThanOrEqualTo(controller.getMinBatchSize());
+    }
+
+    @Test
+    public void submit_backsOffOnErrors() {
+        WriteController controller = new WriteController(1000, 1024, 8, Duration.ofSeconds(10));
+
+        Flux.range(0, 20)
+                .concatMap(i -> controller.submit(() -> Mono.just(i)))
+                .blockLast();
+        int concurrency = controller.getConcurrency();
+
+        Mono<Object> failed = controller.submit(() -> Mono.error(new IllegalStateException("write failed")));
+        failed.onErrorResume(e -> Mono.empty()).block();
+
+        assertThat(controller.getConcurrency()).as("concurrency").isEqualTo(concurrency / 2);
+        assertThat(controller.getBatchSize()).as("batch size").isEqualTo(500);
+    }
+}